@@ -0,0 +1,235 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures the throughput of the image kernels. Each measure is printed
+ * as a line "result;kernel;threads;megapixels;milliseconds;megapixels per
+ * second", like the timings of the reconstructions.
+ * Usage: Benchmark [width [height [repetitions]]]
+ * @author Mathias Seuret
+ */
+public class Benchmark {
+    
+    /**
+     * @param args width, height and number of repetitions
+     */
+    public static void main(String[] args) {
+        int w    = (args.length>0) ? Integer.parseInt(args[0]) : 4096;
+        int h    = (args.length>1) ? Integer.parseInt(args[1]) : 4096;
+        int reps = (args.length>2) ? Integer.parseInt(args[2]) : 10;
+        
+        Image img = new Image(w, h);
+        Random rnd = new Random(0);
+        float[] row = new float[w];
+        for (int l=0; l<img.getDepth(); l++) {
+            for (int y=0; y<h; y++) {
+                for (int x=0; x<w; x++) {
+                    row[x] = rnd.nextFloat();
+                }
+                img.setRow(l, y, row);
+            }
+        }
+        
+        int cores = Parallel.getThreads();
+        int[] threads = (cores>1) ? new int[] {1, cores} : new int[] {1};
+        for (int t : threads) {
+            Parallel.setThreads(t);
+            benchmarkConversions(img, reps);
+        }
+        try {
+            Parallel.setThreads(1);
+            benchmarkImageIOPng(img, reps);
+            for (int t : threads) {
+                Parallel.setThreads(t);
+                benchmarkPngWriter(img, reps);
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot benchmark the PNG encoders: "+e.getMessage());
+        }
+        img.release();
+        
+        for (int type : DECODED_TYPES) {
+            BufferedImage bi = randomImage(w, h, type, rnd);
+            Parallel.setThreads(1);
+            benchmarkGetRGB(bi, reps);
+            for (int t : threads) {
+                Parallel.setThreads(t);
+                benchmarkDecoding(bi, reps);
+            }
+        }
+        Parallel.setThreads(cores);
+    }
+    
+    private static void benchmarkPngWriter(Image img, int reps) throws IOException {
+        File f = File.createTempFile("divadid-bench", ".png");
+        f.deleteOnExit();
+        PngWriter writer = new PngWriter();
+        writer.write(img, f);
+        long total = 0;
+        for (int r=0; r<reps; r++) {
+            long t0 = System.nanoTime();
+            writer.write(img, f);
+            total += System.nanoTime()-t0;
+        }
+        f.delete();
+        double mpix = (double)img.getWidth() * img.getHeight() * reps / 1e6;
+        print("encode-png", mpix, total);
+    }
+    
+    /**
+     * Reference: the ImageIO encoder, including the quantization.
+     */
+    private static void benchmarkImageIOPng(Image img, int reps) throws IOException {
+        File f = File.createTempFile("divadid-bench", ".png");
+        f.deleteOnExit();
+        ImageEncoder.write(img.toBufferedImage(), "png", f);
+        long total = 0;
+        for (int r=0; r<reps; r++) {
+            long t0 = System.nanoTime();
+            ImageEncoder.write(img.toBufferedImage(), "png", f);
+            total += System.nanoTime()-t0;
+        }
+        f.delete();
+        double mpix = (double)img.getWidth() * img.getHeight() * reps / 1e6;
+        print("encode-png-imageio", mpix, total);
+    }
+    
+    private static final int[] DECODED_TYPES = {
+        BufferedImage.TYPE_3BYTE_BGR,
+        BufferedImage.TYPE_INT_RGB,
+        BufferedImage.TYPE_BYTE_GRAY,
+        BufferedImage.TYPE_4BYTE_ABGR
+    };
+    
+    private static final String[] TYPE_NAMES = {
+        "custom", "int_rgb", "int_argb", "int_argb_pre", "int_bgr", "3byte_bgr",
+        "4byte_abgr", "4byte_abgr_pre", "ushort_565", "ushort_555",
+        "byte_gray", "ushort_gray", "byte_binary", "byte_indexed"
+    };
+    
+    private static BufferedImage randomImage(int w, int h, int type, Random rnd) {
+        BufferedImage bi = new BufferedImage(w, h, type);
+        WritableRaster r = bi.getRaster();
+        int[] samples = new int[w];
+        for (int b=0; b<r.getNumBands(); b++) {
+            for (int y=0; y<h; y++) {
+                for (int x=0; x<w; x++) {
+                    samples[x] = rnd.nextInt(256);
+                }
+                r.setSamples(0, y, w, 1, b, samples);
+            }
+        }
+        return bi;
+    }
+    
+    private static void benchmarkDecoding(BufferedImage bi, int reps) {
+        Image warm = new Image(bi, null);
+        warm.release();
+        long total = 0;
+        for (int r=0; r<reps; r++) {
+            long t0 = System.nanoTime();
+            Image img = new Image(bi, null);
+            total += System.nanoTime()-t0;
+            img.release();
+        }
+        double mpix = (double)bi.getWidth() * bi.getHeight() * reps / 1e6;
+        print("decode-"+TYPE_NAMES[bi.getType()], mpix, total);
+    }
+    
+    /**
+     * Reference: conversion through one getRGB() call per pixel, as the
+     * loader used to do.
+     */
+    private static void benchmarkGetRGB(BufferedImage bi, int reps) {
+        int w = bi.getWidth();
+        int h = bi.getHeight();
+        float[] r = new float[w];
+        float[] g = new float[w];
+        float[] b = new float[w];
+        long total = 0;
+        for (int rep=0; rep<=reps; rep++) {
+            long t0 = System.nanoTime();
+            for (int y=0; y<h; y++) {
+                for (int x=0; x<w; x++) {
+                    int rgb = bi.getRGB(x, y);
+                    r[x] = ((rgb & 0x00FF0000) >> 16) / 255.0f;
+                    g[x] = ((rgb & 0x0000FF00) >> 8)  / 255.0f;
+                    b[x] =  (rgb & 0x000000FF)        / 255.0f;
+                }
+            }
+            if (rep>0) {
+                // the first pass warms up the JIT
+                total += System.nanoTime()-t0;
+            }
+        }
+        double mpix = (double)w * h * reps / 1e6;
+        print("getrgb-"+TYPE_NAMES[bi.getType()], mpix, total);
+    }
+    
+    private static void benchmarkConversions(Image img, int reps) {
+        // warming up the JIT
+        for (int r=0; r<2; r++) {
+            img.toYUV();
+            img.toRGB();
+            img.toHSV();
+            img.toRGB();
+        }
+        long yuv = 0;
+        long rgb = 0;
+        long hsv = 0;
+        long back = 0;
+        for (int r=0; r<reps; r++) {
+            long t0 = System.nanoTime();
+            img.toYUV();
+            long t1 = System.nanoTime();
+            img.toRGB();
+            long t2 = System.nanoTime();
+            img.toHSV();
+            long t3 = System.nanoTime();
+            img.toRGB();
+            long t4 = System.nanoTime();
+            yuv  += t1-t0;
+            rgb  += t2-t1;
+            hsv  += t3-t2;
+            back += t4-t3;
+        }
+        double mpix = (double)img.getWidth() * img.getHeight() * reps / 1e6;
+        print("rgb2yuv", mpix, yuv);
+        print("yuv2rgb", mpix, rgb);
+        print("rgb2hsv", mpix, hsv);
+        print("hsv2rgb", mpix, back);
+    }
+    
+    private static void print(String kernel, double mpix, long nanos) {
+        double ms = nanos / 1e6;
+        System.out.println("result;"+kernel+";"+Parallel.getThreads()+";"
+                + String.format("%.1f;%.1f;%.1f", mpix, ms, mpix/(ms/1000)));
+    }
+}
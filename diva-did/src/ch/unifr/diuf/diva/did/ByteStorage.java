@@ -0,0 +1,106 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+/**
+ * Stores the layers of an image on the heap with 8 bits per value, using
+ * a quarter of the memory of HeapStorage. Values are quantized to 256
+ * levels between 0 and 1; values outside of this range are clamped, so this
+ * storage does not suit images with negative values such as differences.
+ * Images loaded from 8-bit files are stored without loss.
+ * @author Mathias Seuret
+ */
+public class ByteStorage extends PixelStorage {
+    
+    /**
+     * Value of each of the 256 levels.
+     */
+    private static final float[] DECODE = new float[256];
+    
+    static {
+        for (int b=0; b<DECODE.length; b++) {
+            DECODE[b] = b / 255.0f;
+        }
+    }
+    
+    /**
+     * The first index is the layer, the second one is y*width+x.
+     */
+    protected byte[][] plane;
+    
+    public ByteStorage(int width, int height, int depth) {
+        super(width, height, depth);
+        plane = new byte[depth][width*height];
+    }
+    
+    @Override
+    public Kind getKind() {
+        return Kind.UINT8;
+    }
+
+    @Override
+    public float get(int layer, int x, int y) {
+        return DECODE[plane[layer][y*width+x] & 0xFF];
+    }
+
+    @Override
+    public void set(int layer, int x, int y, float value) {
+        plane[layer][y*width+x] = toByte(value);
+    }
+    
+    @Override
+    public void getRow(int layer, int y, float[] dst, int off) {
+        byte[] src = plane[layer];
+        for (int x=0, p=y*width; x<width; x++, p++) {
+            dst[off+x] = DECODE[src[p] & 0xFF];
+        }
+    }
+    
+    @Override
+    public void setRow(int layer, int y, float[] src, int off) {
+        byte[] dst = plane[layer];
+        for (int x=0, p=y*width; x<width; x++, p++) {
+            dst[p] = toByte(src[off+x]);
+        }
+    }
+    
+    @Override
+    public void release() {
+        plane = null;
+    }
+    
+    /**
+     * Quantizes a value.
+     * @param v value, normally between 0 and 1
+     * @return the closest level
+     */
+    private static byte toByte(float v) {
+        int b = Math.round(v*255);
+        if (b<0) {
+            b = 0;
+        } else if (b>255) {
+            b = 255;
+        }
+        return (byte)b;
+    }
+}
@@ -0,0 +1,320 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.util.Arrays;
+
+/**
+ * Preconditioned conjugate gradient solver for a PoissonProblem. The matrix
+ * is never built: the negated five-point Laplacian, which is symmetric and
+ * positive definite, is applied to flat buffers by bands of rows in
+ * parallel, as are the dot products and vector updates. The current values
+ * are used as first guess.
+ * @author Mathias Seuret
+ */
+public class ConjugateGradient {
+    
+    /**
+     * Preconditioners.
+     */
+    public enum Preconditioner {
+        /**
+         * Division by the diagonal, which is the same everywhere for this
+         * equation: it only scales the residual.
+         */
+        JACOBI,
+        /**
+         * Symmetric successive over-relaxation in red-black order.
+         */
+        SSOR,
+        /**
+         * Incomplete Cholesky factorization without fill-in, in red-black
+         * order: red points only have black neighbours, so only the
+         * diagonal of the black points differs from the matrix.
+         */
+        IC
+    }
+    
+    /**
+     * Default maximum number of iterations.
+     */
+    public static final int DEFAULT_MAX_ITERATIONS = 1000;
+    
+    /**
+     * Default tolerance, relative to the initial residual norm.
+     */
+    public static final float DEFAULT_TOLERANCE = 1e-5f;
+    
+    /**
+     * Minimum number of rows given to a thread.
+     */
+    private static final int MIN_BAND_ROWS = 16;
+    
+    private final PoissonProblem problem;
+    private final Preconditioner preconditioner;
+    private final float omega;
+    private final int nx;
+    private final int ny;
+    
+    /**
+     * Prepares a solver.
+     * @param problem to solve
+     * @param preconditioner to use
+     * @param omega relaxation factor of the SSOR preconditioner, in ]0,2[
+     */
+    public ConjugateGradient(PoissonProblem problem, Preconditioner preconditioner, float omega) {
+        if (omega<=0 || omega>=2) {
+            throw new IllegalArgumentException("The relaxation factor must be in ]0,2[");
+        }
+        this.problem = problem;
+        this.preconditioner = preconditioner;
+        this.omega = omega;
+        nx = problem.getWidth();
+        ny = problem.getHeight();
+    }
+    
+    /**
+     * Iterates until the criterion is met, and stores the solution into the
+     * problem. As the residual is not monotonic, the criterion only stops
+     * when it is below the tolerance.
+     * @param criterion deciding when to stop
+     */
+    public void solve(StopCriterion criterion) {
+        int n = nx*ny;
+        float[] u = problem.getInitialGuess();
+        if (n==0) {
+            criterion.start(0);
+            criterion.isDone(criterion.getMaxSweeps(), 0);
+            return;
+        }
+        float[] r = new float[n];
+        float[] z = new float[n];
+        float[] p = new float[n];
+        float[] q = new float[n];
+        
+        // r = b - Mu with M = -A and b = -f, i.e. the opposite of f - Au
+        PoissonProblem.residual(u, problem.getRhs(), r, nx, ny, 1);
+        scale(r, -1);
+        precondition(r, z);
+        System.arraycopy(z, 0, p, 0, n);
+        double rz = dot(r, z);
+        float norm = (float)Math.sqrt(dot(r, r));
+        criterion.ignoreStagnation();
+        criterion.start(norm);
+        if (norm==0) {
+            // the initial guess is already exact
+            criterion.converged(0);
+            problem.store(u);
+            return;
+        }
+        
+        for (int it=0; !criterion.isDone(it, norm); it++) {
+            apply(p, q);
+            double pq = dot(p, q);
+            if (rz==0 || pq==0) {
+                // exact solution reached, the step would be 0/0
+                criterion.converged(it);
+                break;
+            }
+            double alpha = rz / pq;
+            double rr = update(u, r, p, q, (float)alpha);
+            norm = (float)Math.sqrt(rr);
+            precondition(r, z);
+            double rzNew = dot(r, z);
+            float beta = (float)(rzNew / rz);
+            rz = rzNew;
+            axpy(z, beta, p);
+        }
+        problem.store(u);
+    }
+    
+    /**
+     * Computes q = -A p.
+     */
+    private void apply(final float[] p, final float[] q) {
+        Parallel.forRows(ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int j=y0; j<y1; j++) {
+                    for (int i=0, k=j*nx; i<nx; i++, k++) {
+                        q[k] = 4*p[k]
+                             - ((i>0)    ? p[k-1]  : 0)
+                             - ((i<nx-1) ? p[k+1]  : 0)
+                             - ((j>0)    ? p[k-nx] : 0)
+                             - ((j<ny-1) ? p[k+nx] : 0);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return the dot product of two vectors, summed by rows
+     */
+    private double dot(final float[] a, final float[] b) {
+        final double[] rowSum = new double[ny];
+        Parallel.forRows(ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int j=y0; j<y1; j++) {
+                    double sum = 0;
+                    for (int k=j*nx; k<(j+1)*nx; k++) {
+                        sum += (double)a[k]*b[k];
+                    }
+                    rowSum[j] = sum;
+                }
+            }
+        });
+        double sum = 0;
+        for (double s : rowSum) {
+            sum += s;
+        }
+        return sum;
+    }
+    
+    /**
+     * Computes u += alpha*p and r -= alpha*q.
+     * @return the squared norm of the new residual
+     */
+    private double update(final float[] u, final float[] r, final float[] p, final float[] q, final float alpha) {
+        final double[] rowSum = new double[ny];
+        Parallel.forRows(ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int j=y0; j<y1; j++) {
+                    double sum = 0;
+                    for (int k=j*nx; k<(j+1)*nx; k++) {
+                        u[k] += alpha*p[k];
+                        r[k] -= alpha*q[k];
+                        sum += (double)r[k]*r[k];
+                    }
+                    rowSum[j] = sum;
+                }
+            }
+        });
+        double sum = 0;
+        for (double s : rowSum) {
+            sum += s;
+        }
+        return sum;
+    }
+    
+    /**
+     * Computes p = z + beta*p.
+     */
+    private void axpy(final float[] z, final float beta, final float[] p) {
+        Parallel.forRows(ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int k=y0*nx; k<y1*nx; k++) {
+                    p[k] = z[k] + beta*p[k];
+                }
+            }
+        });
+    }
+    
+    /**
+     * Multiplies a vector by a constant.
+     */
+    private void scale(final float[] a, final float s) {
+        Parallel.forRows(ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int k=y0*nx; k<y1*nx; k++) {
+                    a[k] *= s;
+                }
+            }
+        });
+    }
+    
+    /**
+     * Computes z, the preconditioned residual r.
+     */
+    private void precondition(float[] r, float[] z) {
+        switch (preconditioner) {
+            case JACOBI:
+                System.arraycopy(r, 0, z, 0, r.length);
+                scale(z, 0.25f);
+                break;
+            case SSOR:
+                // forward sweep from zero, then backward sweep
+                Arrays.fill(z, 0);
+                relax(r, z, 0, omega, 0, false);
+                relax(r, z, 1, omega, 0, false);
+                relax(r, z, 1, omega, 1-omega, false);
+                relax(r, z, 0, omega, 1-omega, false);
+                break;
+            case IC:
+                // solves with the factors, the red values depending only
+                // on the black ones and conversely
+                Arrays.fill(z, 0);
+                relax(r, z, 0, 1, 0, false);
+                relax(r, z, 1, 1, 0, true);
+                relax(r, z, 0, 1, 0, false);
+                break;
+        }
+    }
+    
+    /**
+     * Updates the points of one colour:
+     * z = keep*z + w*(r + sum of the neighbours of the other colour) / d,
+     * where d is the diagonal, or its incomplete Cholesky value.
+     * @param colour 0 for red points, (i+j) even, 1 for black ones
+     * @param w relaxation factor
+     * @param keep weight of the previous value
+     * @param ic true for the diagonal of the incomplete factorization
+     */
+    private void relax(final float[] r, final float[] z, final int colour,
+                       final float w, final float keep, final boolean ic) {
+        Parallel.forRows(ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int j=y0; j<y1; j++) {
+                    for (int i=(j+colour)&1, k=j*nx+i; i<nx; i+=2, k+=2) {
+                        float s = r[k];
+                        int nb = 0;
+                        if (i>0) {
+                            s += z[k-1];
+                            nb++;
+                        }
+                        if (i<nx-1) {
+                            s += z[k+1];
+                            nb++;
+                        }
+                        if (j>0) {
+                            s += z[k-nx];
+                            nb++;
+                        }
+                        if (j<ny-1) {
+                            s += z[k+nx];
+                            nb++;
+                        }
+                        // each neighbour removes 1/4 from the diagonal
+                        float d = ic ? 4-nb/4.0f : 4;
+                        z[k] = ((keep==0) ? 0 : keep*z[k]) + w*s/d;
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,302 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copy-on-write view of a storage, used for copying images in constant
+ * time. Several views share a base storage which is never modified
+ * anymore; a row is copied into the view the first time it is modified.
+ * Rows which have been copied can themselves be shared by copying a view,
+ * in which case they are copied again on the next modification, unless
+ * the other views have been released meanwhile.
+ * When all rows of a view have been copied, the view stops referencing the
+ * base storage, which is released when no view uses it anymore. A view
+ * which does not share anything anymore can be turned back into a heap
+ * storage with unwrap().
+ * @author Mathias Seuret
+ */
+public class CowStorage extends PixelStorage {
+    
+    /**
+     * Frozen storage, with the number of views using it.
+     */
+    private static class Base {
+        PixelStorage storage;
+        int refs;
+        
+        Base(PixelStorage storage) {
+            this.storage = storage;
+        }
+        
+        synchronized void acquire() {
+            refs++;
+        }
+        
+        synchronized void releaseRef() {
+            refs--;
+            if (refs==0) {
+                storage.release();
+                storage = null;
+            }
+        }
+        
+        synchronized int getRefs() {
+            return refs;
+        }
+        
+        /**
+         * Hands the storage over to its last user.
+         */
+        synchronized PixelStorage take() {
+            PixelStorage s = storage;
+            storage = null;
+            refs = 0;
+            return s;
+        }
+    }
+    
+    /**
+     * Row copied from the base, with the number of views using it.
+     */
+    private static class Row {
+        final float[] data;
+        final AtomicInteger refs = new AtomicInteger(1);
+        
+        Row(float[] data) {
+            this.data = data;
+        }
+        
+        boolean isShared() {
+            return refs.get()>1;
+        }
+        
+        /**
+         * Gives the values back to the pool if no view uses them anymore.
+         */
+        void releaseRef() {
+            if (refs.decrementAndGet()==0) {
+                PlanePool.giveBack(data);
+            }
+        }
+    }
+    
+    private Base base;
+    
+    /**
+     * Rows owned by this view, or null if they are read from the base.
+     * First index: layer, second index: row.
+     */
+    private Row[][] rows;
+    
+    /**
+     * Number of rows which are not read from the base anymore.
+     */
+    private int detached;
+    
+    /**
+     * Creates a view on a storage which must not be modified directly
+     * anymore.
+     * @param storage to share
+     */
+    public CowStorage(PixelStorage storage) {
+        this(new Base(storage), storage.getWidth(), storage.getHeight(), storage.getDepth());
+    }
+    
+    private CowStorage(Base base, int width, int height, int depth) {
+        super(width, height, depth);
+        this.base = base;
+        if (base!=null) {
+            base.acquire();
+        }
+        rows = new Row[depth][height];
+        detached = 0;
+    }
+    
+    /**
+     * Indicates whether a storage can be shared by copy-on-write views. Only
+     * full-precision heap storages can, as the copied rows are kept as floats
+     * on the heap.
+     * @param storage to check
+     * @return true if it can be shared
+     */
+    public static boolean canShare(PixelStorage storage) {
+        return storage instanceof HeapStorage;
+    }
+    
+    /**
+     * Creates a new view with the same content as this one. This costs
+     * one reference per row, but no value is copied.
+     * @return the new view
+     */
+    public synchronized CowStorage copy() {
+        CowStorage c = new CowStorage(base, width, height, depth);
+        for (int l=0; l<depth; l++) {
+            for (int y=0; y<height; y++) {
+                Row r = rows[l][y];
+                if (r!=null) {
+                    r.refs.incrementAndGet();
+                    c.rows[l][y] = r;
+                }
+            }
+        }
+        c.detached = detached;
+        return c;
+    }
+    
+    /**
+     * Turns this view back into a heap storage if no other view shares its
+     * values anymore. The base storage is reused when this view was its
+     * last user. On success, this view must not be used anymore. This must
+     * not be called while other threads use this view.
+     * @return the heap storage with the values of this view, or null if
+     *         values are still shared
+     */
+    public synchronized HeapStorage unwrap() {
+        if (base!=null && base.getRefs()>1) {
+            return null;
+        }
+        for (int l=0; l<depth; l++) {
+            for (int y=0; y<height; y++) {
+                if (rows[l][y]!=null && rows[l][y].isShared()) {
+                    return null;
+                }
+            }
+        }
+        HeapStorage res;
+        if (base!=null) {
+            // only this view uses the base, it can be written again
+            res = (HeapStorage)base.take();
+            base = null;
+        } else {
+            res = new HeapStorage(width, height, depth);
+        }
+        for (int l=0; l<depth; l++) {
+            for (int y=0; y<height; y++) {
+                Row r = rows[l][y];
+                if (r!=null) {
+                    res.setRow(l, y, r.data, 0);
+                    r.releaseRef();
+                }
+            }
+        }
+        rows = null;
+        return res;
+    }
+    
+    @Override
+    public Kind getKind() {
+        return Kind.HEAP;
+    }
+
+    @Override
+    public float get(int layer, int x, int y) {
+        Row r = rows[layer][y];
+        if (r!=null) {
+            return r.data[x];
+        }
+        return base.storage.get(layer, x, y);
+    }
+
+    @Override
+    public void set(int layer, int x, int y, float value) {
+        Row r = rows[layer][y];
+        if (r==null || r.isShared()) {
+            r = detach(layer, y, true);
+        }
+        r.data[x] = value;
+    }
+    
+    @Override
+    public void getRow(int layer, int y, float[] dst, int off) {
+        Row r = rows[layer][y];
+        if (r!=null) {
+            System.arraycopy(r.data, 0, dst, off, width);
+        } else {
+            base.storage.getRow(layer, y, dst, off);
+        }
+    }
+    
+    @Override
+    public void setRow(int layer, int y, float[] src, int off) {
+        Row r = rows[layer][y];
+        if (r==null || r.isShared()) {
+            r = detach(layer, y, false);
+        }
+        System.arraycopy(src, off, r.data, 0, width);
+    }
+    
+    /**
+     * Gives this view its own copy of a row.
+     * @param layer color channel
+     * @param y row number
+     * @param keep true if the current values have to be copied
+     * @return the row owned by this view
+     */
+    private synchronized Row detach(int layer, int y, boolean keep) {
+        Row r = rows[layer][y];
+        if (r!=null && !r.isShared()) {
+            // another thread detached it, or the other views released it
+            return r;
+        }
+        Row own = new Row(PlanePool.borrowUninitialized(width));
+        if (r!=null) {
+            if (keep) {
+                System.arraycopy(r.data, 0, own.data, 0, width);
+            }
+            r.releaseRef();
+        } else {
+            if (keep) {
+                base.storage.getRow(layer, y, own.data, 0);
+            }
+            detached++;
+        }
+        rows[layer][y] = own;
+        if (detached==depth*height && base!=null) {
+            // the base is not needed anymore
+            base.releaseRef();
+            base = null;
+        }
+        return own;
+    }
+    
+    @Override
+    public synchronized void release() {
+        if (base!=null) {
+            base.releaseRef();
+            base = null;
+        }
+        if (rows==null) {
+            return;
+        }
+        for (int l=0; l<depth; l++) {
+            for (int y=0; y<height; y++) {
+                if (rows[l][y]!=null) {
+                    rows[l][y].releaseRef();
+                }
+            }
+        }
+        rows = null;
+    }
+}
@@ -0,0 +1,292 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Discrete cosine transforms of a given length, computed with a complex
+ * FFT of the same length as described by Makhoul (1980). Lengths which are
+ * powers of two use a radix-2 FFT, the other ones Bluestein's algorithm on
+ * a larger power of two. The tables only depend on the length, so plans
+ * are cached and shared by all threads; the work arrays are given by the
+ * callers.
+ * @author Mathias Seuret
+ */
+public class DctPlan {
+    
+    /**
+     * Number of plans kept in the cache.
+     */
+    private static final int CACHE_SIZE = 8;
+    
+    private static final Map<Integer, DctPlan> cache = new LinkedHashMap<Integer, DctPlan>(2*CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, DctPlan> eldest) {
+            return size()>CACHE_SIZE;
+        }
+    };
+    
+    private static long created = 0;
+    private static long reused = 0;
+    
+    /**
+     * Returns the plan of a length, creating it if it is not in the cache.
+     * @param n length of the transforms
+     * @return the plan
+     */
+    public static synchronized DctPlan get(int n) {
+        DctPlan plan = cache.get(n);
+        if (plan==null) {
+            plan = new DctPlan(n);
+            cache.put(n, plan);
+            created++;
+        } else {
+            reused++;
+        }
+        return plan;
+    }
+    
+    /**
+     * @return the number of plans created and reused so far
+     */
+    public static synchronized String getStatistics() {
+        return created+" DCT plans created, "+reused+" reused";
+    }
+    
+    private final int n;
+    /**
+     * Twiddles cos and sin of pi*k/(2n).
+     */
+    private final double[] cosQ;
+    private final double[] sinQ;
+    /**
+     * Size of the radix-2 FFT, n itself or the one used by Bluestein.
+     */
+    private final int m;
+    private final double[] cosM;
+    private final double[] sinM;
+    private final int[] bitReversal;
+    /**
+     * Bluestein chirp and transform of its conjugate, or null.
+     */
+    private final double[] chirpRe;
+    private final double[] chirpIm;
+    private final double[] kernelRe;
+    private final double[] kernelIm;
+    
+    private DctPlan(int n) {
+        if (n<1) {
+            throw new IllegalArgumentException("Invalid DCT length: "+n);
+        }
+        this.n = n;
+        cosQ = new double[n];
+        sinQ = new double[n];
+        for (int k=0; k<n; k++) {
+            cosQ[k] = Math.cos(Math.PI*k/(2.0*n));
+            sinQ[k] = Math.sin(Math.PI*k/(2.0*n));
+        }
+        
+        boolean powerOfTwo = (n&(n-1))==0;
+        m = powerOfTwo ? n : Integer.highestOneBit(2*n-1)<<1;
+        cosM = new double[m/2+1];
+        sinM = new double[m/2+1];
+        for (int k=0; k<=m/2; k++) {
+            cosM[k] = Math.cos(2*Math.PI*k/m);
+            sinM[k] = Math.sin(2*Math.PI*k/m);
+        }
+        bitReversal = new int[m];
+        int bits = Integer.numberOfTrailingZeros(m);
+        for (int k=0; k<m; k++) {
+            bitReversal[k] = (bits==0) ? 0 : Integer.reverse(k)>>>(32-bits);
+        }
+        
+        if (powerOfTwo) {
+            chirpRe = null;
+            chirpIm = null;
+            kernelRe = null;
+            kernelIm = null;
+        } else {
+            // w_k = exp(-i pi k^2 / n), with k^2 taken modulo 2n for precision
+            chirpRe = new double[n];
+            chirpIm = new double[n];
+            for (int k=0; k<n; k++) {
+                long k2 = ((long)k*k) % (2L*n);
+                chirpRe[k] = Math.cos(Math.PI*k2/n);
+                chirpIm[k] = -Math.sin(Math.PI*k2/n);
+            }
+            kernelRe = new double[m];
+            kernelIm = new double[m];
+            kernelRe[0] = chirpRe[0];
+            kernelIm[0] = -chirpIm[0];
+            for (int k=1; k<n; k++) {
+                kernelRe[k] = kernelRe[m-k] = chirpRe[k];
+                kernelIm[k] = kernelIm[m-k] = -chirpIm[k];
+            }
+            fft(kernelRe, kernelIm);
+        }
+    }
+    
+    public int getLength() {
+        return n;
+    }
+    
+    /**
+     * @return the size of the work arrays needed by the transforms
+     */
+    public int getWorkSize() {
+        return m;
+    }
+    
+    /**
+     * @param k frequency
+     * @return the eigenvalue of the second difference with reflected
+     *         borders for the cosine of frequency k, 2cos(pi*k/n)-2
+     */
+    public double eigenvalue(int k) {
+        // cos(pi*k/n) = cos(2*(pi*k/(2n)))
+        return 2*(cosQ[k]*cosQ[k]-sinQ[k]*sinQ[k]) - 2;
+    }
+    
+    /**
+     * Unnormalized DCT-II: X[k] = sum x[j]*cos(pi*(2j+1)*k/(2n)).
+     * @param data n values, replaced by their transform
+     * @param off offset of the first value
+     * @param re work array of getWorkSize() values
+     * @param im work array of getWorkSize() values
+     */
+    public void forward(float[] data, int off, double[] re, double[] im) {
+        // even values first, then the odd ones in reverse order
+        for (int j=0; 2*j<n; j++) {
+            re[j] = data[off+2*j];
+        }
+        for (int j=0; 2*j+1<n; j++) {
+            re[n-1-j] = data[off+2*j+1];
+        }
+        for (int j=0; j<n; j++) {
+            im[j] = 0;
+        }
+        transform(re, im);
+        for (int k=0; k<n; k++) {
+            // real part of exp(-i*pi*k/(2n)) * V[k]
+            data[off+k] = (float)(cosQ[k]*re[k] + sinQ[k]*im[k]);
+        }
+    }
+    
+    /**
+     * Inverse of forward().
+     * @param data n coefficients, replaced by the values
+     * @param off offset of the first coefficient
+     * @param re work array of getWorkSize() values
+     * @param im work array of getWorkSize() values
+     */
+    public void inverse(float[] data, int off, double[] re, double[] im) {
+        // V[k] = exp(i*pi*k/(2n)) * (X[k] - i*X[n-k]), with X[n] = 0
+        for (int k=0; k<n; k++) {
+            double a = data[off+k];
+            double b = (k==0) ? 0 : -data[off+n-k];
+            re[k] = cosQ[k]*a - sinQ[k]*b;
+            // conjugated, so that the forward FFT computes the inverse one
+            im[k] = -(sinQ[k]*a + cosQ[k]*b);
+        }
+        transform(re, im);
+        for (int j=0; 2*j<n; j++) {
+            data[off+2*j] = (float)(re[j]/n);
+        }
+        for (int j=0; 2*j+1<n; j++) {
+            data[off+2*j+1] = (float)(re[n-1-j]/n);
+        }
+    }
+    
+    /**
+     * Complex DFT of length n, in place in the first n values.
+     */
+    private void transform(double[] re, double[] im) {
+        if (chirpRe==null) {
+            fft(re, im);
+            return;
+        }
+        // Bluestein: convolution of the chirped values with the kernel
+        for (int k=0; k<n; k++) {
+            double a = re[k]*chirpRe[k] - im[k]*chirpIm[k];
+            double b = re[k]*chirpIm[k] + im[k]*chirpRe[k];
+            re[k] = a;
+            im[k] = b;
+        }
+        for (int k=n; k<m; k++) {
+            re[k] = 0;
+            im[k] = 0;
+        }
+        fft(re, im);
+        for (int k=0; k<m; k++) {
+            double a = re[k]*kernelRe[k] - im[k]*kernelIm[k];
+            double b = re[k]*kernelIm[k] + im[k]*kernelRe[k];
+            // conjugated for the inverse transform
+            re[k] = a;
+            im[k] = -b;
+        }
+        fft(re, im);
+        for (int k=0; k<n; k++) {
+            double a = re[k]/m;
+            double b = -im[k]/m;
+            re[k] = a*chirpRe[k] - b*chirpIm[k];
+            im[k] = a*chirpIm[k] + b*chirpRe[k];
+        }
+    }
+    
+    /**
+     * In-place iterative radix-2 FFT of length m.
+     */
+    private void fft(double[] re, double[] im) {
+        for (int k=0; k<m; k++) {
+            int r = bitReversal[k];
+            if (r>k) {
+                double t = re[k];
+                re[k] = re[r];
+                re[r] = t;
+                t = im[k];
+                im[k] = im[r];
+                im[r] = t;
+            }
+        }
+        for (int len=2; len<=m; len<<=1) {
+            int half = len>>1;
+            int step = m/len;
+            for (int s=0; s<m; s+=len) {
+                for (int k=0; k<half; k++) {
+                    double wr = cosM[k*step];
+                    double wi = -sinM[k*step];
+                    int a = s+k;
+                    int b = a+half;
+                    double tr = re[b]*wr - im[b]*wi;
+                    double ti = re[b]*wi + im[b]*wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
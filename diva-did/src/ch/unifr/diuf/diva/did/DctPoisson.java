@@ -0,0 +1,189 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+/**
+ * Direct solver of the Poisson equation of a GradientMap over the whole
+ * image, with reflected (Neumann) borders: the cosine transform turns the
+ * Laplacian into a division by its eigenvalues. The gradients determine
+ * the values up to a constant, which is chosen so that the mean of the
+ * values is kept; the result is thus the closest one to the current values
+ * in the least-squares sense. Rows are transformed in
+ * parallel; columns are transformed as rows of the transposed image.
+ * @author Mathias Seuret
+ */
+public class DctPoisson {
+    
+    /**
+     * Minimum number of rows given to a thread.
+     */
+    private static final int MIN_BAND_ROWS = 8;
+    
+    /**
+     * Size of the blocks of the transposition.
+     */
+    private static final int BLOCK = 64;
+    
+    private DctPoisson() {
+        // only static methods
+    }
+    
+    /**
+     * Replaces the values of a map by the ones whose gradients are the
+     * closest to the gradients of the map.
+     * @param map to reconstruct
+     */
+    public static void solve(final GradientMap map) {
+        final int w = map.width;
+        final int h = map.height;
+        final DctPlan px = DctPlan.get(w);
+        final DctPlan py = DctPlan.get(h);
+        final float[] f = PlanePool.borrowUninitialized(w*h);
+        final float[] t = PlanePool.borrowUninitialized(w*h);
+        
+        // divergence of the gradients, each edge inside of the image
+        // counting for both of its pixels; its sum is zero. The maps have
+        // no gradients along the last row and column, which are never
+        // modified, so they are taken from the values
+        Parallel.forRows(h, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int y=y0; y<y1; y++) {
+                    for (int x=0, p=y*w; x<w; x++, p++) {
+                        float d = 0;
+                        if (x<w-1) {
+                            d += gx(map, x, y, p);
+                        }
+                        if (x>0) {
+                            d -= gx(map, x-1, y, p-1);
+                        }
+                        if (y<h-1) {
+                            d += gy(map, x, y, p);
+                        }
+                        if (y>0) {
+                            d -= gy(map, x, y-1, p-w);
+                        }
+                        f[p] = d;
+                    }
+                }
+            }
+        });
+        float mean = mean(map.val, w*h);
+        
+        transformRows(f, h, px, true);
+        transpose(f, t, w, h);
+        transformRows(t, w, py, true);
+        
+        // t[k*h+l] is the coefficient of frequency k along x and l along y
+        Parallel.forRows(w, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int k0, int k1) {
+                for (int k=k0; k<k1; k++) {
+                    double ex = px.eigenvalue(k);
+                    for (int l=0, p=k*h; l<h; l++, p++) {
+                        double lambda = ex + py.eigenvalue(l);
+                        t[p] = (k==0 && l==0) ? 0 : (float)(t[p]/lambda);
+                    }
+                }
+            }
+        });
+        
+        transformRows(t, w, py, false);
+        transpose(t, f, h, w);
+        transformRows(f, h, px, false);
+        
+        float offset = mean - mean(f, w*h);
+        for (int p=0; p<w*h; p++) {
+            map.val[p] = f[p] + offset;
+        }
+        PlanePool.giveBack(f);
+        PlanePool.giveBack(t);
+    }
+    
+    /**
+     * @return the mean of the first n values of an array
+     */
+    private static float mean(float[] a, int n) {
+        double sum = 0;
+        for (int p=0; p<n; p++) {
+            sum += a[p];
+        }
+        return (float)(sum / n);
+    }
+    
+    /**
+     * @return the horizontal gradient at p, which is pixel (x,y)
+     */
+    private static float gx(GradientMap map, int x, int y, int p) {
+        return (y<map.height-1) ? map.gx[p] : map.val[p+1]-map.val[p];
+    }
+    
+    /**
+     * @return the vertical gradient at p, which is pixel (x,y)
+     */
+    private static float gy(GradientMap map, int x, int y, int p) {
+        return (x<map.width-1) ? map.gy[p] : map.val[p+map.width]-map.val[p];
+    }
+    
+    /**
+     * Transforms all rows of a plane.
+     */
+    private static void transformRows(final float[] data, int nbRows, final DctPlan plan, final boolean forward) {
+        final int n = plan.getLength();
+        Parallel.forRows(nbRows, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                double[] re = new double[plan.getWorkSize()];
+                double[] im = new double[plan.getWorkSize()];
+                for (int y=y0; y<y1; y++) {
+                    if (forward) {
+                        plan.forward(data, y*n, re, im);
+                    } else {
+                        plan.inverse(data, y*n, re, im);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Transposes a plane of w columns and h rows, by blocks.
+     */
+    private static void transpose(final float[] src, final float[] dst, final int w, final int h) {
+        int nbBlockRows = (h+BLOCK-1)/BLOCK;
+        Parallel.forRows(nbBlockRows, 1, new Parallel.RowTask() {
+            @Override
+            public void run(int b0, int b1) {
+                for (int y0=b0*BLOCK; y0<Math.min(h, b1*BLOCK); y0+=BLOCK) {
+                    for (int x0=0; x0<w; x0+=BLOCK) {
+                        for (int y=y0; y<Math.min(h, y0+BLOCK); y++) {
+                            for (int x=x0; x<Math.min(w, x0+BLOCK); x++) {
+                                dst[x*h+y] = src[y*w+x];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,376 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Reads and writes images without quantization, for intermediate results.
+ * Two formats are supported:
+ * <ul>
+ * <li>.flt: the header "DIDF" followed by the width, the height and the
+ * depth as little-endian integers, then the layers one after the other,
+ * as little-endian floats in row-major order. This is the layout of
+ * MappedStorage, so the file is loaded by mapping it, without decoding.</li>
+ * <li>.pfm: the portable float map, with interleaved RGB (PF) or gray (Pf)
+ * values and rows stored bottom to top.</li>
+ * </ul>
+ * @author Mathias Seuret
+ */
+public class FloatImageIO {
+    
+    private static final byte[] MAGIC = {'D', 'I', 'D', 'F'};
+    
+    /**
+     * Size of the .flt header, in bytes.
+     */
+    public static final int HEADER_SIZE = 16;
+    
+    /**
+     * Approximate number of bytes written at once.
+     */
+    private static final int BAND_BYTES = 1 << 20;
+    
+    private FloatImageIO() {
+        // only static methods
+    }
+    
+    /**
+     * @param fname file name
+     * @return true if the file name has the extension of a float format
+     */
+    public static boolean isFloatFile(String fname) {
+        String f = fname.toLowerCase();
+        return f.endsWith(".flt") || f.endsWith(".pfm");
+    }
+    
+    /**
+     * Loads a float image.
+     * @param file .flt or .pfm file
+     * @param kind of storage, or null to map .flt files and choose the
+     *             storage of .pfm files according to their size
+     * @return the storage containing the values
+     * @throws IOException if the file cannot be read
+     */
+    public static PixelStorage read(File file, PixelStorage.Kind kind) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".pfm")) {
+            return readPfm(file, kind);
+        }
+        return readFlt(file, kind);
+    }
+    
+    /**
+     * Saves an image in a float format, chosen according to the extension.
+     * The values are written into a temporary file which then replaces the
+     * target, as the image can be mapped from the target itself.
+     * @param img image to save
+     * @param file .flt or .pfm file
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Image img, File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName()+"-", ".tmp", dir);
+        boolean done = false;
+        try {
+            if (file.getName().toLowerCase().endsWith(".pfm")) {
+                writePfm(img, tmp);
+            } else {
+                writeFlt(img, tmp);
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                tmp.delete();
+            }
+        }
+    }
+    
+    private static PixelStorage readFlt(File file, PixelStorage.Kind kind) throws IOException {
+        int width, height, depth;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            int n = raf.getChannel().read(header, 0);
+            boolean valid = (n==HEADER_SIZE);
+            for (int i=0; valid && i<MAGIC.length; i++) {
+                valid = (header.get(i)==MAGIC[i]);
+            }
+            if (!valid) {
+                throw new IOException(file+" is not a .flt file");
+            }
+            width  = header.getInt(4);
+            height = header.getInt(8);
+            depth  = header.getInt(12);
+            if (raf.length() < HEADER_SIZE + 4L*width*height*depth) {
+                throw new IOException(file+" is truncated");
+            }
+        }
+        
+        // private mapping: the image can be modified without touching the
+        // file; this however requires the file to be writable
+        if (!file.canWrite()) {
+            MappedStorage mapped = new MappedStorage(file, HEADER_SIZE, width, height, depth,
+                                                     FileChannel.MapMode.READ_ONLY);
+            PixelStorage res = (kind==null || kind==PixelStorage.Kind.MAPPED)
+                             ? PixelStorage.create(width, height, depth)
+                             : PixelStorage.create(kind, width, height, depth);
+            return copy(mapped, res);
+        }
+        MappedStorage mapped = new MappedStorage(file, HEADER_SIZE, width, height, depth,
+                                                 FileChannel.MapMode.PRIVATE);
+        if (kind==null || kind==PixelStorage.Kind.MAPPED) {
+            return mapped;
+        }
+        return copy(mapped, PixelStorage.create(kind, width, height, depth));
+    }
+    
+    /**
+     * Copies the values of a mapped file into another storage, and unmaps
+     * the file.
+     */
+    private static PixelStorage copy(MappedStorage mapped, PixelStorage res) {
+        int width  = res.getWidth();
+        int height = res.getHeight();
+        int depth  = res.getDepth();
+        float[] row = new float[width];
+        for (int l=0; l<depth; l++) {
+            for (int y=0; y<height; y++) {
+                mapped.getRow(l, y, row, 0);
+                res.setRow(l, y, row, 0);
+            }
+        }
+        mapped.release();
+        return res;
+    }
+    
+    private static void writeFlt(Image img, File file) throws IOException {
+        PixelStorage px = img.getStorage();
+        int width  = img.getWidth();
+        int height = img.getHeight();
+        int depth  = img.getDepth();
+        
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).putInt(width).putInt(height).putInt(depth);
+        header.flip();
+        
+        try (FileOutputStream fos = new FileOutputStream(file);
+             FileChannel out = fos.getChannel()) {
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            
+            // the scratch file of a mapped image already has the right layout
+            if (px instanceof MappedStorage && ((MappedStorage)px).getBackingFile()!=null) {
+                MappedStorage m = (MappedStorage)px;
+                long size = 4L*width*height*depth;
+                try (RandomAccessFile raf = new RandomAccessFile(m.getBackingFile(), "r");
+                     FileChannel in = raf.getChannel()) {
+                    long done = 0;
+                    while (done<size) {
+                        done += in.transferTo(m.getOffset()+done, size-done, out);
+                    }
+                }
+                return;
+            }
+            
+            int bandRows = Math.max(1, BAND_BYTES / (4*width));
+            ByteBuffer band = ByteBuffer.allocateDirect(4*width*Math.min(bandRows, height))
+                                        .order(ByteOrder.LITTLE_ENDIAN);
+            FloatBuffer floats = band.asFloatBuffer();
+            float[] row = new float[width];
+            for (int l=0; l<depth; l++) {
+                for (int y0=0; y0<height; y0+=bandRows) {
+                    int y1 = Math.min(height, y0+bandRows);
+                    floats.clear();
+                    for (int y=y0; y<y1; y++) {
+                        px.getRow(l, y, row, 0);
+                        floats.put(row);
+                    }
+                    band.clear();
+                    band.limit(4*width*(y1-y0));
+                    while (band.hasRemaining()) {
+                        out.write(band);
+                    }
+                }
+            }
+        }
+    }
+    
+    private static PixelStorage readPfm(File file, PixelStorage.Kind kind) throws IOException {
+        String type;
+        int width, height;
+        float scale;
+        long dataStart;
+        try (InputStream in = new FileInputStream(file)) {
+            long[] pos = {0};
+            type   = nextToken(in, pos);
+            width  = Integer.parseInt(nextToken(in, pos));
+            height = Integer.parseInt(nextToken(in, pos));
+            scale  = Float.parseFloat(nextToken(in, pos));
+            dataStart = pos[0];
+        }
+        final int depth;
+        if (type.equals("PF")) {
+            depth = 3;
+        } else if (type.equals("Pf")) {
+            depth = 1;
+        } else {
+            throw new IOException(file+" is not a PFM file");
+        }
+        ByteOrder order = (scale<0) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        
+        final PixelStorage res = (kind==null) ? PixelStorage.create(width, height, depth)
+                                              : PixelStorage.create(kind, width, height, depth);
+        final int w = width;
+        final int h = height;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() < dataStart + 4L*width*height*depth) {
+                throw new IOException(file+" is truncated");
+            }
+            long rowSize = 4L*width*depth;
+            int bandRows = (int)Math.max(1, Math.min(height, BAND_BYTES/rowSize));
+            for (int y0=0; y0<height; y0+=bandRows) {
+                final int first = y0;
+                int n = Math.min(bandRows, height-y0);
+                // file rows are stored from the bottom of the image
+                long start = dataStart + (height-y0-n)*rowSize;
+                final FloatBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, start, n*rowSize)
+                                                .order(order).asFloatBuffer();
+                final int rows = n;
+                Parallel.forRows(n, 16, new Parallel.RowTask() {
+                    @Override
+                    public void run(int i0, int i1) {
+                        float[] px  = new float[w*depth];
+                        float[] row = new float[w];
+                        // each thread moves its own position in the band
+                        FloatBuffer in = data.duplicate();
+                        for (int i=i0; i<i1; i++) {
+                            int y = first+i;
+                            in.position((rows-1-i)*w*depth);
+                            in.get(px);
+                            for (int l=0; l<depth; l++) {
+                                for (int x=0; x<w; x++) {
+                                    row[x] = px[x*depth+l];
+                                }
+                                res.setRow(l, y, row, 0);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        return res;
+    }
+    
+    private static void writePfm(final Image img, File file) throws IOException {
+        final int width  = img.getWidth();
+        int height       = img.getHeight();
+        final int depth  = (img.getDepth()==1) ? 1 : 3;
+        String header = ((depth==1) ? "Pf" : "PF")+"\n"+width+" "+height+"\n-1.0\n";
+        
+        final int rowFloats = width*depth;
+        int bandRows = Math.max(1, BAND_BYTES / (4*rowFloats));
+        ByteBuffer band = ByteBuffer.allocateDirect(4*rowFloats*Math.min(bandRows, height))
+                                    .order(ByteOrder.LITTLE_ENDIAN);
+        final FloatBuffer floats = band.asFloatBuffer();
+        try (FileOutputStream fos = new FileOutputStream(file);
+             FileChannel out = fos.getChannel()) {
+            ByteBuffer h = ByteBuffer.wrap(header.getBytes("US-ASCII"));
+            while (h.hasRemaining()) {
+                out.write(h);
+            }
+            // rows are written from the bottom of the image
+            for (int y1=height; y1>0; y1-=bandRows) {
+                final int y0 = Math.max(0, y1-bandRows);
+                final int n  = y1-y0;
+                Parallel.forRows(n, 16, new Parallel.RowTask() {
+                    @Override
+                    public void run(int i0, int i1) {
+                        float[] row = new float[width];
+                        float[] px  = new float[rowFloats];
+                        FloatBuffer dst = floats.duplicate();
+                        for (int i=i0; i<i1; i++) {
+                            int y = y0+i;
+                            for (int l=0; l<depth; l++) {
+                                img.getRow(l, y, row);
+                                for (int x=0; x<width; x++) {
+                                    px[x*depth+l] = row[x];
+                                }
+                            }
+                            dst.position((n-1-i)*rowFloats);
+                            dst.put(px);
+                        }
+                    }
+                });
+                band.clear();
+                band.limit(4*rowFloats*n);
+                while (band.hasRemaining()) {
+                    out.write(band);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reads a whitespace-separated token of a PFM header. The header ends
+     * with a single whitespace after the scale.
+     */
+    private static String nextToken(InputStream in, long[] pos) throws IOException {
+        ByteArrayOutputStream tok = new ByteArrayOutputStream();
+        int c;
+        do {
+            c = in.read();
+            pos[0]++;
+        } while (c==' ' || c=='\n' || c=='\r' || c=='\t');
+        while (c!=-1 && c!=' ' && c!='\n' && c!='\r' && c!='\t') {
+            tok.write(c);
+            c = in.read();
+            pos[0]++;
+        }
+        if (c==-1) {
+            throw new IOException("Unexpected end of PFM header");
+        }
+        return tok.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,152 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+/**
+ * Gradient maps of all the channels of an image. They are built in a single
+ * pass over the image, and the reconstructed values of all channels can be
+ * pasted back in a single pass as well.
+ * @author Mathias Seuret
+ */
+public class GradientField {
+    
+    /**
+     * Minimum number of rows given to a thread.
+     */
+    private static final int MIN_BAND_ROWS = 16;
+    
+    private final GradientMap[] maps;
+    private final int width;
+    private final int height;
+    
+    /**
+     * Computes the values and gradients of the first channels of an image.
+     * Channels beyond the depth of the image repeat its last layer.
+     * @param img source image
+     * @param nbChannels number of channels
+     */
+    public GradientField(final Image img, int nbChannels) {
+        width = img.getWidth();
+        height = img.getHeight();
+        maps = new GradientMap[nbChannels];
+        for (int c=0; c<nbChannels; c++) {
+            maps[c] = new GradientMap(width, height);
+        }
+        
+        Parallel.forRows(height, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                float[] next = new float[width];
+                for (int c=0; c<maps.length; c++) {
+                    int layer = Math.min(c, img.getDepth()-1);
+                    float[] val = maps[c].val;
+                    float[] gx  = maps[c].gx;
+                    float[] gy  = maps[c].gy;
+                    for (int y=y0; y<y1; y++) {
+                        img.pixel.getRow(layer, y, val, y*width);
+                    }
+                    // the row below the band belongs to another thread
+                    if (y1<height) {
+                        img.pixel.getRow(layer, y1, next, 0);
+                    }
+                    for (int y=y0; y<y1 && y<height-1; y++) {
+                        int p = y*width;
+                        for (int x=0; x<width-1; x++, p++) {
+                            float below = (y+1<y1) ? val[p + width] : next[x];
+                            gx[p] = val[p + 1] - val[p];
+                            gy[p] = below - val[p];
+                        }
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * @param channel number
+     * @return the gradient map of the channel
+     */
+    public GradientMap get(int channel) {
+        return maps[channel];
+    }
+    
+    /**
+     * @return the gradient maps of all channels
+     */
+    public GradientMap[] getMaps() {
+        return maps;
+    }
+    
+    public int getNbChannels() {
+        return maps.length;
+    }
+    
+    /**
+     * Pastes the values of all channels onto an image, as
+     * GradientMap.pasteValues() would do for each channel in turn: pixels
+     * which are dark in all of the first three layers are left unchanged.
+     * @param target image
+     * @return the difference between the original data and the pasted values
+     */
+    public float pasteValues(final Image target) {
+        final int depth = target.getDepth();
+        final int[] mask = {0, Math.min(1, depth-1), Math.min(2, depth-1)};
+        final float[] diff = new float[height];
+        Parallel.forRows(height, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                float[][] row = new float[depth][width];
+                for (int y=y0; y<y1; y++) {
+                    target.getRows(y, row);
+                    float d = 0;
+                    for (int x=0; x<width; x++) {
+                        for (int c=0; c<maps.length && c<depth; c++) {
+                            if (row[mask[0]][x]<0.1 && row[mask[1]][x]<0.1 && row[mask[2]][x]<0.1) {
+                                continue;
+                            }
+                            float v = maps[c].val[y*width + x];
+                            d += Math.abs(row[c][x]-v);
+                            row[c][x] = v;
+                        }
+                    }
+                    target.setRows(y, row);
+                    diff[y] = d;
+                }
+            }
+        });
+        float sum = 0;
+        for (float d : diff) {
+            sum += d;
+        }
+        return sum;
+    }
+    
+    /**
+     * Gives the arrays of all maps back to the PlanePool.
+     */
+    public void release() {
+        for (GradientMap m : maps) {
+            m.release();
+        }
+    }
+}
@@ -22,7 +22,6 @@
  ******************************************************************************/
 package ch.unifr.diuf.diva.did;
 
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.jocl.CL;
 import static org.jocl.CL.CL_CONTEXT_PLATFORM;
@@ -72,36 +71,75 @@ import org.jocl.cl_program;
  */
 public class GradientMap {
     
-    float[][] gx;
-    float[][] gy;
-    float[][] val;
+    /**
+     * Gradients and values, stored row by row: the value of pixel (x,y) is
+     * at index y*width+x.
+     */
+    float[] gx;
+    float[] gy;
+    float[] val;
     int width;
     int height;
 
+    /**
+     * Allocates a map filled later, by a GradientField.
+     * @param width of the map
+     * @param height of the map
+     */
+    GradientMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        gx = PlanePool.borrow(width*height);
+        gy = PlanePool.borrow(width*height);
+        val = PlanePool.borrowUninitialized(width*height);
+    }
+
     public GradientMap(Image img, int channelNum) {
         width = img.getWidth();
         height = img.getHeight();
-        gx = new float[width][height];
-        gy = new float[width][height];
-        val = new float[width][height];
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                val[x][y] = img.get(channelNum, x, y);
-            }
+        gx = PlanePool.borrow(width*height);
+        gy = PlanePool.borrow(width*height);
+        val = PlanePool.borrowUninitialized(width*height);
+        int layer = Math.min(channelNum, img.getDepth()-1);
+        for (int y = 0; y < height; y++) {
+            img.pixel.getRow(layer, y, val, y*width);
         }
-        for (int x = 0; x < width - 1; x++) {
-            for (int y = 0; y < height - 1; y++) {
-                gx[x][y] = val[x + 1][y] - val[x][y];
-                gy[x][y] = val[x][y + 1] - val[x][y];
+        for (int y = 0; y < height - 1; y++) {
+            int p = y*width;
+            for (int x = 0; x < width - 1; x++, p++) {
+                gx[p] = val[p + 1] - val[p];
+                gy[p] = val[p + width] - val[p];
             }
         }
     }
     
-    public float[][] getGX() {
+    /**
+     * Gives the arrays of this map back to the PlanePool. The map must not
+     * be used afterwards.
+     */
+    public void release() {
+        if (val==null) {
+            return;
+        }
+        PlanePool.giveBack(gx);
+        PlanePool.giveBack(gy);
+        PlanePool.giveBack(val);
+        gx = null;
+        gy = null;
+        val = null;
+    }
+    
+    /**
+     * @return the horizontal gradients, row by row
+     */
+    public float[] getGX() {
         return gx;
     }
     
-    public float[][] getGY() {
+    /**
+     * @return the vertical gradients, row by row
+     */
+    public float[] getGY() {
         return gy;
     }
     
@@ -122,8 +160,9 @@ public class GradientMap {
 
         for (int x = 0; x < width - 1; x++) {
             for (int y = 0; y < height - 1; y++) {
-                err += Math.abs(gx[x][y] - (val[x + 1][y] - val[x][y]));
-                err += Math.abs(gy[x][y] - (val[x][y + 1] - val[x][y]));
+                int p = y*width + x;
+                err += Math.abs(gx[p] - (val[p + 1] - val[p]));
+                err += Math.abs(gy[p] - (val[p + width] - val[p]));
             }
         }
 
@@ -140,11 +179,12 @@ public class GradientMap {
         float diff = 0;
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
-                if (target.getValues(x, y)[0]<0.1 && target.getValues(x, y)[1]<0.1 && target.getValues(x, y)[2]<0.1) {
+                if (target.get(0, x, y)<0.1 && target.get(1, x, y)<0.1 && target.get(2, x, y)<0.1) {
                     continue;
                 }
-                diff += (float)Math.abs(target.getValues(x,y)[channel]-val[x][y]);
-                target.set(channel, x, y, val[x][y]);
+                float v = val[y*width + x];
+                diff += (float)Math.abs(target.get(channel, x, y)-v);
+                target.set(channel, x, y, v);
             }
         }
         return diff;
@@ -161,111 +201,171 @@ public class GradientMap {
                 if (py >= target.height - 1 || py<0) {
                     continue;
                 }
-                if (img.getValues(px, py)[0]<0.025 && img.getValues(px, py)[1]<0.025 && img.getValues(px, py)[2]<0.025) {
+                if (img.get(0, px, py)<0.025 && img.get(1, px, py)<0.025 && img.get(2, px, py)<0.025) {
                     continue;
                 }
-                float gxb = Math.abs(gx[dx][dy]*boost);
-                float gyb = Math.abs(gy[dx][dy]*boost);
-                float tx  = Math.abs(target.gx[px][py]);
-                float ty  = Math.abs(target.gy[px][py]);
+                int p = dy*width + dx;
+                int t = py*target.width + px;
+                float gxb = Math.abs(gx[p]*boost);
+                float gyb = Math.abs(gy[p]*boost);
+                float tx  = Math.abs(target.gx[t]);
+                float ty  = Math.abs(target.gy[t]);
                 if (gxb*gxb+gyb*gyb > tx*tx+ty*ty) {
-                    target.gx[px][py] = gx[dx][dy]*boost;
-                    target.gy[px][py] = gy[dx][dy]*boost;
+                    target.gx[t] = gx[p]*boost;
+                    target.gy[t] = gy[p]*boost;
                 }
             }
         }
     }
 
+    /**
+     * @return the values, row by row; the array is not a copy
+     */
     public float[] getValues1D() {
-        float[] res = new float[width * height];
-        int p = 0;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                res[p++] = val[x][y];
-            }
-        }
-        return res;
+        return val;
     }
 
+    /**
+     * Replaces the values.
+     * @param in values, row by row
+     */
     public void setValues1D(float[] in) {
-        int p = 0;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                val[x][y] = in[p++];
-            }
+        if (in!=val) {
+            System.arraycopy(in, 0, val, 0, width * height);
         }
     }
 
+    /**
+     * @return the horizontal gradients, row by row; the array is not a copy
+     */
     public float[] getGX1D() {
-        float[] res = new float[width * height];
-        int p = 0;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                res[p++] = gx[x][y];
-            }
-        }
-        return res;
+        return gx;
     }
 
+    /**
+     * @return the vertical gradients, row by row; the array is not a copy
+     */
     public float[] getGY1D() {
-        float[] res = new float[width * height];
-        int p = 0;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                res[p++] = gy[x][y];
-            }
-        }
-        return res;
+        return gy;
     }
 
     protected void reconstructStepLR() {
-        for (int y = 2; y<height-2; y++) {
-            reconstructStepLR(y);
-        }
+        reconstructStepLR(2, height-2);
     }
     
-    protected void reconstructStepLR(int y) {
-        for (int x=2; x<width-2; x++) {
-            val[x][y] = (val[x][y] + val[x - 1][y] + gx[x - 1][y]) / 2;
+    /**
+     * Left to right sweep over the rows y0 to y1 (excluded).
+     */
+    protected void reconstructStepLR(int y0, int y1) {
+        for (int y=y0; y<y1; y++) {
+            int row = y*width;
+            for (int p=row+2; p<row+width-2; p++) {
+                val[p] = (val[p] + val[p - 1] + gx[p - 1]) / 2;
+            }
         }
     }
 
     protected void reconstructStepRL() {
-        for (int y=2; y<height-2; y++) {
-            reconstructStepRL(y);
-        }
+        reconstructStepRL(2, height-2);
     }
     
-    protected void reconstructStepRL(int y) {
-        for (int x=width-3; x>=2; x--) {
-            val[x][y] = (val[x][y] + val[x + 1][y] - gx[x][y]) / 2;
+    /**
+     * Right to left sweep over the rows y0 to y1 (excluded).
+     */
+    protected void reconstructStepRL(int y0, int y1) {
+        for (int y=y0; y<y1; y++) {
+            int row = y*width;
+            for (int p=row+width-3; p>=row+2; p--) {
+                val[p] = (val[p] + val[p + 1] - gx[p]) / 2;
+            }
         }
     }
 
     protected void reconstructStepTB() {
-        for (int x=2; x<width-2; x++) {
-            reconstructStepTB(x);
-        }
+        reconstructStepTB(2, width-2);
     }
     
-    protected void reconstructStepTB(int x) {
+    /**
+     * Top to bottom sweep over the columns x0 to x1 (excluded). The columns
+     * are independent, so they are updated one row after the other, which
+     * reads the memory linearly.
+     */
+    protected void reconstructStepTB(int x0, int x1) {
         for (int y=2; y<height-2; y++) {
-            val[x][y] = (val[x][y] + val[x][y - 1] + gy[x][y - 1]) / 2;
+            int row = y*width;
+            for (int p=row+x0; p<row+x1; p++) {
+                val[p] = (val[p] + val[p - width] + gy[p - width]) / 2;
+            }
         }
     }
 
     protected void reconstructStepBT() {
-        for (int x=2; x<width-2; x++) {
-            reconstructStepBT(x);
-        }
+        reconstructStepBT(2, width-2);
     }
     
-    protected void reconstructStepBT(int x) {
+    /**
+     * Bottom to top sweep over the columns x0 to x1 (excluded).
+     */
+    protected void reconstructStepBT(int x0, int x1) {
         for (int y=height-3; y>=2; y--) {
-            val[x][y] = (val[x][y] + val[x][y + 1] - gy[x][y]) / 2;
+            int row = y*width;
+            for (int p=row+x0; p<row+x1; p++) {
+                val[p] = (val[p] + val[p + width] - gy[p]) / 2;
+            }
         }
     }
 
+    /**
+     * Minimum number of rows given to a thread when computing residuals.
+     */
+    private static final int MIN_BAND_ROWS = 16;
+    
+    /**
+     * Evaluates how far the values are from the gradient, as getError()
+     * does, but in parallel and normalized by the number of gradients.
+     * @return the mean absolute difference between gradients and values
+     */
+    public float getResidual() {
+        if (width<2 || height<2) {
+            return 0;
+        }
+        final double[] rowSum = new double[height-1];
+        Parallel.forRows(height-1, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int y=y0; y<y1; y++) {
+                    double sum = 0;
+                    int p = y*width;
+                    for (int x=0; x<width-1; x++, p++) {
+                        sum += Math.abs(gx[p] - (val[p + 1] - val[p]));
+                        sum += Math.abs(gy[p] - (val[p + width] - val[p]));
+                    }
+                    rowSum[y] = sum;
+                }
+            }
+        });
+        double sum = 0;
+        for (double r : rowSum) {
+            sum += r;
+        }
+        return (float)(sum / (2.0*(width-1)*(height-1)));
+    }
+    
+    /**
+     * @return the residual if the criterion needs it after this sweep,
+     *         NaN otherwise
+     */
+    private float residualIfNeeded(StopCriterion criterion, int sweeps) {
+        return criterion.needsResidual(sweeps) ? getResidual() : Float.NaN;
+    }
+    
+    /**
+     * @return the residual before the first sweep if the criterion uses it
+     */
+    private float initialResidual(StopCriterion criterion) {
+        return criterion.usesResidual() ? getResidual() : Float.NaN;
+    }
+
     /**
      * If you want to understand how the method works, this is the method
      * you should look at. The other ones do the same, but in more complicated
@@ -273,8 +373,17 @@ public class GradientMap {
      * @param nbSteps 
      */
     public void CPUReconstruct(int nbSteps) {
+        CPUReconstruct(new StopCriterion(nbSteps));
+    }
+    
+    /**
+     * Single-thread reconstruction.
+     * @param criterion deciding when to stop
+     */
+    public void CPUReconstruct(StopCriterion criterion) {
         long start = System.currentTimeMillis();
-        for (int step=0; step<nbSteps; step++) {
+        criterion.start(initialResidual(criterion));
+        for (int step=0; !criterion.isDone(step, residualIfNeeded(criterion, step)); step++) {
             switch (step%4) {
                 case 0:
                     reconstructStepLR();
@@ -292,15 +401,24 @@ public class GradientMap {
         }
         long compTime = System.currentTimeMillis() - start;
         long workMem = width*height*4;
-        long nbOp    = nbSteps * width;
+        long nbOp    = criterion.getSweeps() * width;
         long taskMem = (width+height)/2*4;
         System.out.println("result;single-core;"+workMem+";"+taskMem+";"+nbOp+";"+0+";"+compTime);
     }
     
     public void MultiCPUReconstruct(int nbSteps) throws InterruptedException {
+        MultiCPUReconstruct(new StopCriterion(nbSteps));
+    }
+    
+    /**
+     * Multi-thread reconstruction; each thread sweeps a band of rows or
+     * columns, and all threads wait for each other between two sweeps.
+     * @param criterion deciding when to stop
+     * @throws InterruptedException if interrupted while waiting for a thread
+     */
+    public void MultiCPUReconstruct(StopCriterion criterion) throws InterruptedException {
         long start = System.currentTimeMillis();
         int nbCPU = Runtime.getRuntime().availableProcessors();
-        Semaphore lock = new Semaphore(0);
         AtomicBoolean  isDone = new AtomicBoolean(false);
         
         long initTime = System.currentTimeMillis() - start;
@@ -311,37 +429,130 @@ public class GradientMap {
         // Creates & starts threads
         ReconstructionThread[] thread = new ReconstructionThread[nbCPU];
         for (int cpu=0; cpu<nbCPU; cpu++) {
-            thread[cpu] = new ReconstructionThread(this, cpu, nbCPU, lock, isDone);
+            thread[cpu] = new ReconstructionThread(this, cpu, nbCPU, isDone);
             thread[cpu].start();
         }
         
-        for (int step=0; step<nbSteps; step++) {
-            lock.release(nbCPU);
-            
-            for (int cpu=0; cpu<nbCPU; cpu++) {
-                thread[cpu].waitForReady();
+        int nbSteps = criterion.getMaxSweeps();
+        criterion.start(initialResidual(criterion));
+        try {
+            for (int step=0; !criterion.isDone(step, residualIfNeeded(criterion, step)); step++) {
+                for (int cpu=0; cpu<nbCPU; cpu++) {
+                    thread[cpu].startStep();
+                }
+
+                for (int cpu=0; cpu<nbCPU; cpu++) {
+                    thread[cpu].waitForReady();
+                }
+
+                if (step%100==0) {
+                    long chrono    = System.currentTimeMillis() - start;
+                    long remaining = 1+(long)(chrono/(step+1.0f) * (nbSteps-step) / 1000);
+                    System.out.print("\r"+step+"/"+nbSteps+", "+remaining+" seconds remaining");
+                    System.out.flush();
+                }
             }
-            
-            if (step%100==0) {
-                long chrono    = System.currentTimeMillis() - start;
-                long remaining = 1+(long)(chrono/(step+1.0f) * (nbSteps-step) / 1000);
-                System.out.print("\r"+step+"/"+nbSteps+", "+remaining+" seconds remaining");
-                System.out.flush();
+            System.out.println("");
+        } finally {
+            isDone.set(true);
+            for (int cpu=0; cpu<nbCPU; cpu++) {
+                thread[cpu].startStep();
             }
         }
-        System.out.println("");
-        
-        isDone.set(true);
-        lock.release(nbCPU);
+        for (int cpu=0; cpu<nbCPU; cpu++) {
+            thread[cpu].join();
+        }
         
         long compTime = System.currentTimeMillis() - start;
         long workMem = width*height*4;
-        long nbOp    = nbSteps * width;
+        long nbOp    = criterion.getSweeps() * width;
         long taskMem = (width+height)/2*4;
         System.out.println("result;multi-cpu;"+workMem+";"+taskMem+";"+nbOp+";"+initTime+";"+compTime);
     }
 
+    /**
+     * Solves the Poisson equation of the map with multigrid cycles. The
+     * result are the values whose gradients are the closest to the map in
+     * the least-squares sense; it is reached in a number of cycles which
+     * does not depend on the size.
+     * @param criterion deciding when to stop, each cycle counting as a sweep
+     * @param wCycle true for W-cycles, false for V-cycles
+     */
+    public void MultigridReconstruct(StopCriterion criterion, boolean wCycle) {
+        long start = System.currentTimeMillis();
+        Multigrid mg = new Multigrid(new PoissonProblem(this), wCycle);
+        long initTime = System.currentTimeMillis() - start;
+        mg.solve(criterion);
+        long compTime = System.currentTimeMillis() - start;
+        long workMem = width*height*4;
+        long nbOp    = criterion.getSweeps() * width;
+        long taskMem = (width+height)/2*4;
+        System.out.println("result;multigrid-"+(wCycle ? "W" : "V")+";"+workMem+";"+taskMem+";"+nbOp+";"+initTime+";"+compTime);
+    }
+
+    /**
+     * Solves the Poisson equation of the map with a preconditioned
+     * conjugate gradient, starting from the current values.
+     * @param criterion deciding when to stop
+     * @param preconditioner to use
+     * @param omega relaxation factor of the SSOR preconditioner
+     */
+    public void CGReconstruct(StopCriterion criterion, ConjugateGradient.Preconditioner preconditioner, float omega) {
+        long start = System.currentTimeMillis();
+        ConjugateGradient cg = new ConjugateGradient(new PoissonProblem(this), preconditioner, omega);
+        long initTime = System.currentTimeMillis() - start;
+        cg.solve(criterion);
+        long compTime = System.currentTimeMillis() - start;
+        long workMem = width*height*4;
+        long nbOp    = criterion.getSweeps() * width;
+        long taskMem = (width+height)/2*4;
+        System.out.println("result;cg-"+preconditioner.name().toLowerCase()+";"+workMem+";"+taskMem+";"+nbOp+";"+initTime+";"+compTime);
+    }
+
+    /**
+     * Solves the Poisson equation of the map by red-black successive
+     * over-relaxation, starting from the current values.
+     * @param criterion deciding when to stop
+     * @param omega relaxation factor, or 0 for the optimal one
+     */
+    public void SORReconstruct(StopCriterion criterion, float omega) {
+        long start = System.currentTimeMillis();
+        RedBlackSOR sor = new RedBlackSOR(new PoissonProblem(this), omega);
+        long initTime = System.currentTimeMillis() - start;
+        sor.solve(criterion);
+        long compTime = System.currentTimeMillis() - start;
+        long workMem = width*height*4;
+        long nbOp    = criterion.getSweeps() * width;
+        long taskMem = (width+height)/2*4;
+        System.out.println("result;red-black-sor-"+sor.getOmega()+";"+workMem+";"+taskMem+";"+nbOp+";"+initTime+";"+compTime);
+    }
+
+    /**
+     * Reconstructs the values directly with cosine transforms. Unlike the
+     * other methods, the border is not fixed: the values of the whole image
+     * match the gradients as well as possible, with reflected borders, and
+     * keep their mean.
+     */
+    public void DCTReconstruct() {
+        long start = System.currentTimeMillis();
+        DctPoisson.solve(this);
+        long compTime = System.currentTimeMillis() - start;
+        long workMem = width*height*4;
+        long taskMem = (width+height)/2*4;
+        System.out.println("result;dct;"+workMem+";"+taskMem+";"+0+";"+0+";"+compTime);
+    }
+
     public void GPUReconstruct(int currentGPU, int nbSteps) {
+        GPUReconstruct(currentGPU, new StopCriterion(nbSteps));
+    }
+    
+    /**
+     * OpenCL reconstruction. The values are read back from the device when
+     * the criterion needs a residual.
+     * @param currentGPU index of the OpenCL platform
+     * @param criterion deciding when to stop
+     */
+    public void GPUReconstruct(int currentGPU, StopCriterion criterion) {
         long chrono = System.currentTimeMillis();
         
         // Get the data
@@ -423,7 +634,8 @@ public class GradientMap {
         // Run the many iterations
         long initTime = System.currentTimeMillis() - chrono;
         long start = System.currentTimeMillis();
-        for (int i = 0; i < nbSteps; i++) {
+        criterion.start(initialResidual(criterion));
+        for (int i = 0; !criterion.isDone(i, criterion.needsResidual(i) ? readResidual(commandQueue, memObjects[2], ptrVal) : Float.NaN); i++) {
             int step = (i % 4);
             long[] global_work_size = (step%2==0) ? global_work_size_01 : global_work_size_23;
 
@@ -475,11 +687,29 @@ public class GradientMap {
         String platformName = getString(platforms[currentGPU], CL_PLATFORM_NAME);
         
         long workMem = width*height*4;
-        long nbOp    = nbSteps * width;
+        long nbOp    = criterion.getSweeps() * width;
         long taskMem = (width+height)/2*4;
         System.out.println("result;"+platformName+";"+workMem+";"+taskMem+";"+nbOp+";"+initTime+";"+compTime);
     }
     
+    /**
+     * Copies the values from the device and computes the residual.
+     */
+    private float readResidual(cl_command_queue commandQueue, cl_mem values, Pointer ptrVal) {
+        clEnqueueReadBuffer(
+                commandQueue,
+                values,
+                CL_TRUE,
+                0,
+                val.length * Sizeof.cl_float,
+                ptrVal,
+                0,
+                null,
+                null
+        );
+        return getResidual();
+    }
+    
     private static String getString(cl_platform_id platform, int paramName)
     {
         // Obtain the length of the string that will be queried
@@ -543,11 +773,13 @@ public class GradientMap {
                 if (py >= target.height - 2 || py<1) {
                     continue;
                 }
-                if (img.getValues(px, py)[0]<0.025 && img.getValues(px, py)[1]<0.025 && img.getValues(px, py)[2]<0.025) {
+                if (img.get(0, px, py)<0.025 && img.get(1, px, py)<0.025 && img.get(2, px, py)<0.025) {
                     continue;
                 }
-                target.gx[px][py] *= 1 - (1-val[dx][dy]) * boost;
-                target.gy[px][py] *= 1 - (1-val[dx][dy]) * boost;
+                float v = val[dy*width + dx];
+                int t = py*target.width + px;
+                target.gx[t] *= 1 - (1-v) * boost;
+                target.gy[t] *= 1 - (1-v) * boost;
             }
         }
     }
@@ -561,7 +793,8 @@ public class GradientMap {
         float sum = 0.0f;
         for (int x=0; x<width; x++) {
             for (int y=0; y<height; y++) {
-                float d = gx[x][y]*o.gy[x][y] - gy[x][y]*o.gx[x][y];
+                int p = y*width + x;
+                float d = gx[p]*o.gy[p] - gy[p]*o.gx[p];
                 sum += (d*d)/2;
             }
         }
@@ -0,0 +1,153 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+/**
+ * Stores the layers of an image on the heap as 16-bit floating point
+ * values (IEEE 754 binary16), halving the memory used compared to
+ * HeapStorage. Values are converted when they are accessed; decoding
+ * uses a lookup table.
+ * @author Mathias Seuret
+ */
+public class HalfStorage extends PixelStorage {
+    
+    /**
+     * Value of each of the 65536 half-precision floats.
+     */
+    private static final float[] DECODE = new float[1<<16];
+    
+    static {
+        for (int h=0; h<DECODE.length; h++) {
+            DECODE[h] = toFloat((short)h);
+        }
+    }
+    
+    /**
+     * The first index is the layer, the second one is y*width+x.
+     */
+    protected short[][] plane;
+    
+    public HalfStorage(int width, int height, int depth) {
+        super(width, height, depth);
+        plane = new short[depth][width*height];
+    }
+    
+    @Override
+    public Kind getKind() {
+        return Kind.FLOAT16;
+    }
+
+    @Override
+    public float get(int layer, int x, int y) {
+        return DECODE[plane[layer][y*width+x] & 0xFFFF];
+    }
+
+    @Override
+    public void set(int layer, int x, int y, float value) {
+        plane[layer][y*width+x] = toHalf(value);
+    }
+    
+    @Override
+    public void getRow(int layer, int y, float[] dst, int off) {
+        short[] src = plane[layer];
+        for (int x=0, p=y*width; x<width; x++, p++) {
+            dst[off+x] = DECODE[src[p] & 0xFFFF];
+        }
+    }
+    
+    @Override
+    public void setRow(int layer, int y, float[] src, int off) {
+        short[] dst = plane[layer];
+        for (int x=0, p=y*width; x<width; x++, p++) {
+            dst[p] = toHalf(src[off+x]);
+        }
+    }
+    
+    @Override
+    public void release() {
+        plane = null;
+    }
+    
+    /**
+     * Converts a float to the closest half-precision float, rounding ties
+     * to even.
+     * @param f value to convert
+     * @return the bits of the half-precision float
+     */
+    public static short toHalf(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int val  = bits & 0x7FFFFFFF;
+        
+        if (val>=0x7F800000) {
+            // infinity or NaN
+            return (short)(sign | 0x7C00 | ((val>0x7F800000) ? 0x0200 : 0));
+        }
+        if (val>=0x477FF000) {
+            // too large, rounded to infinity
+            return (short)(sign | 0x7C00);
+        }
+        if (val<0x38800000) {
+            // subnormal half-precision float
+            if (val<0x33000000) {
+                return (short)sign;
+            }
+            int exp   = val >>> 23;
+            int mant  = (val & 0x007FFFFF) | 0x00800000;
+            int shift = 126 - exp;
+            int h     = mant >>> shift;
+            int rem   = mant & ((1<<shift)-1);
+            int half  = 1 << (shift-1);
+            if (rem>half || (rem==half && (h&1)!=0)) {
+                h++;
+            }
+            return (short)(sign | h);
+        }
+        // normal half-precision float: rebias the exponent from 127 to 15
+        int h   = (val - 0x38000000) >>> 13;
+        int rem = val & 0x1FFF;
+        if (rem>0x1000 || (rem==0x1000 && (h&1)!=0)) {
+            h++;
+        }
+        return (short)(sign | h);
+    }
+    
+    /**
+     * Converts a half-precision float to a float.
+     * @param h bits of the half-precision float
+     * @return the value
+     */
+    public static float toFloat(short h) {
+        int sign = (h & 0x8000) << 16;
+        int exp  = (h >>> 10) & 0x1F;
+        int mant = h & 0x03FF;
+        if (exp==0) {
+            float v = mant / (float)(1<<24);
+            return (sign==0) ? v : -v;
+        }
+        if (exp==31) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mant<<13));
+        }
+        return Float.intBitsToFloat(sign | ((exp+112)<<23) | (mant<<13));
+    }
+}
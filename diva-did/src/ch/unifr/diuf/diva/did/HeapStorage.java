@@ -0,0 +1,80 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+/**
+ * Stores the layers of an image on the heap, as one row-major array
+ * per layer.
+ * @author Mathias Seuret
+ */
+public class HeapStorage extends PixelStorage {
+    
+    /**
+     * The first index is the layer, the second one is y*width+x.
+     */
+    protected float[][] plane;
+    
+    public HeapStorage(int width, int height, int depth) {
+        super(width, height, depth);
+        plane = new float[depth][];
+        for (int l=0; l<depth; l++) {
+            plane[l] = PlanePool.borrow(width*height);
+        }
+    }
+    
+    @Override
+    public Kind getKind() {
+        return Kind.HEAP;
+    }
+
+    @Override
+    public float get(int layer, int x, int y) {
+        return plane[layer][y*width+x];
+    }
+
+    @Override
+    public void set(int layer, int x, int y, float value) {
+        plane[layer][y*width+x] = value;
+    }
+    
+    @Override
+    public void getRow(int layer, int y, float[] dst, int off) {
+        System.arraycopy(plane[layer], y*width, dst, off, width);
+    }
+    
+    @Override
+    public void setRow(int layer, int y, float[] src, int off) {
+        System.arraycopy(src, off, plane[layer], y*width, width);
+    }
+    
+    @Override
+    public void release() {
+        if (plane==null) {
+            return;
+        }
+        for (float[] p : plane) {
+            PlanePool.giveBack(p);
+        }
+        plane = null;
+    }
+}
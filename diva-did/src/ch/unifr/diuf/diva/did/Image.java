@@ -22,13 +22,21 @@
  ******************************************************************************/
 package ch.unifr.diuf.diva.did;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 /**
- * This class stores an image as a multilayer array.
+ * This class stores an image as a multilayer array. The values are kept
+ * in a PixelStorage, either on the heap or in a memory-mapped file; in
+ * both cases each layer is a row-major plane.
  *
  * @author Mathias Seuret
  */
@@ -62,9 +70,17 @@ public class Image {
      * Stores the values of the pixels, encoded in the format specified by the
      * variable type.
      */
-    protected float[][][] pixel = null;
+    protected PixelStorage pixel = null;
     
-    protected float[][] weight;
+    /**
+     * Weights of the pasted values, allocated by the first weighted paste.
+     */
+    protected WeightAccumulator weights = null;
+    
+    /**
+     * Buffer used for processing rows of all layers at once.
+     */
+    private float[][] rowBuffer = null;
 
     /**
      * Loads an image.
@@ -72,6 +88,29 @@ public class Image {
      * @throws IOException if the file could not be loaded
      */
     public Image(String fname) throws IOException {
+        this(fname, null);
+    }
+    
+    /**
+     * Loads an image into the given kind of storage.
+     * @param fname file name of the image
+     * @param kind of storage, or null to choose it according to the size
+     * @throws IOException if the file could not be loaded
+     */
+    public Image(String fname, PixelStorage.Kind kind) throws IOException {
+        if (FloatImageIO.isFloatFile(fname)) {
+            // values are kept as they were saved, without decoding
+            init(FloatImageIO.read(new File(fname), kind));
+            return;
+        }
+        if (kind==PixelStorage.Kind.TILED) {
+            // tiles are decoded when they are accessed
+            init(new TiledStorage(new File(fname),
+                                  TiledStorage.DEFAULT_TILE_SIZE,
+                                  TiledStorage.DEFAULT_CACHE_SIZE));
+            return;
+        }
+        
         // opening the image
         BufferedImage bi;
         
@@ -81,41 +120,131 @@ public class Image {
             System.err.println("Error while loading "+fname);
             throw e;
         }
-        
-
-        // creating the array
-        width = bi.getWidth();
-        height = bi.getHeight();
-        pixel = new float[width][height][3];
-        weight = new float[width][height];
-
-        // loading data
-        if (bi.getType()==BufferedImage.TYPE_BYTE_GRAY) {
-            System.out.println("Loading graylevel image");
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    int rgb = bi.getRGB(x, y);
+        decode(bi, kind);
+    }
 
-                    pixel[x][y][0] = (rgb & 0x000000FF) / 255.0f;
-                    pixel[x][y][1] = (rgb & 0x000000FF) / 255.0f;
-                    pixel[x][y][2] = (rgb & 0x000000FF) / 255.0f;
-                    
-                    pixel[x][y][0] = (rgb & 0x0000FF) / 255.0f;
-                    pixel[x][y][1] = (rgb & 0x0000FF) / 255.0f;
-                    pixel[x][y][2] = (rgb & 0x0000FF) / 255.0f;
+    /**
+     * Loads a part of an image, keeping one pixel out of xStep horizontally
+     * and one out of yStep vertically. The decoder skips the other data, so
+     * that the time and memory depend on the size of the result.
+     * @param fname file name of the image
+     * @param kind of storage, or null to choose it according to the size
+     * @param region to load, or null for the whole image
+     * @param xStep horizontal subsampling, 1 for none
+     * @param yStep vertical subsampling, 1 for none
+     * @throws IOException if the file could not be loaded
+     */
+    public Image(String fname, PixelStorage.Kind kind, Rectangle region, int xStep, int yStep) throws IOException {
+        if (xStep<1 || yStep<1) {
+            throw new IllegalArgumentException("Subsampling factors must be positive");
+        }
+        if (kind==PixelStorage.Kind.TILED) {
+            throw new IllegalArgumentException("Parts of images cannot be loaded into tiles");
+        }
+        if (FloatImageIO.isFloatFile(fname)) {
+            // float files are mapped, only the kept values are copied
+            Image full = new Image(fname, null);
+            Rectangle r = clip(region, full.width, full.height, fname);
+            init(PixelStorage.create(kind==null ? PixelStorage.Kind.HEAP : kind,
+                                     (r.width+xStep-1)/xStep,
+                                     (r.height+yStep-1)/yStep,
+                                     full.getDepth()));
+            float[] src = new float[full.width];
+            float[] dst = new float[width];
+            for (int l=0; l<getDepth(); l++) {
+                for (int y=0; y<height; y++) {
+                    full.pixel.getRow(l, r.y+y*yStep, src, 0);
+                    for (int x=0; x<width; x++) {
+                        dst[x] = src[r.x+x*xStep];
+                    }
+                    pixel.setRow(l, y, dst, 0);
                 }
             }
-        } else {
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    int rgb = bi.getRGB(x, y);
+            full.release();
+            return;
+        }
 
-                    pixel[x][y][0] = ((rgb & 0x00FF0000) >> 16) / 255.0f;
-                    pixel[x][y][1] = ((rgb & 0x0000FF00) >> 8)  / 255.0f;
-                    pixel[x][y][2] =  (rgb & 0x000000FF)        / 255.0f;
-                }
+        ImageInputStream in = ImageIO.createImageInputStream(new File(fname));
+        if (in==null) {
+            throw new IOException("Cannot open "+fname);
+        }
+        BufferedImage bi;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("No decoder found for "+fname);
+            }
+            ImageReader reader = readers.next();
+            reader.setInput(in, true, true);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(clip(region, reader.getWidth(0), reader.getHeight(0), fname));
+                param.setSourceSubsampling(xStep, yStep, 0, 0);
+                bi = reader.read(0, param);
+            } finally {
+                reader.dispose();
             }
+        } catch (IOException e) {
+            System.err.println("Error while loading "+fname);
+            throw e;
+        } finally {
+            in.close();
+        }
+        decode(bi, kind);
+    }
+
+    /**
+     * Restricts a region to the bounds of an image.
+     * @param region to load, or null for the whole image
+     * @param w width of the image
+     * @param h height of the image
+     * @param fname file name, for the error message
+     * @return the part of the region inside of the image
+     */
+    private static Rectangle clip(Rectangle region, int w, int h, String fname) {
+        Rectangle bounds = new Rectangle(0, 0, w, h);
+        Rectangle r = (region==null) ? bounds : region.intersection(bounds);
+        if (r.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "The region "+region.x+","+region.y+" "+region.width+"x"+region.height
+                    +" is outside of "+fname+" ("+w+"x"+h+")"
+            );
+        }
+        return r;
+    }
+
+    /**
+     * Creates an image from a decoded one.
+     * @param bi decoded image
+     * @param kind of storage, or null to choose it according to the size
+     */
+    public Image(BufferedImage bi, PixelStorage.Kind kind) {
+        decode(bi, kind);
+    }
+    
+    private void decode(BufferedImage bi, PixelStorage.Kind kind) {
+        // creating the array; graylevel images get a single layer
+        final RasterDecoder decoder = new RasterDecoder(bi);
+        final int depth = decoder.getDepth();
+        if (decoder.isGray()) {
+            System.out.println("Loading graylevel image");
         }
+        width = bi.getWidth();
+        height = bi.getHeight();
+        pixel = (kind==null) ? PixelStorage.create(width, height, depth)
+                             : PixelStorage.create(kind, width, height, depth);
+
+        // loading data by bands of rows
+        Parallel.forRows(height, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                float[][] row = new float[depth][width];
+                for (int y=y0; y<y1; y++) {
+                    decoder.decodeRow(y, row, 0);
+                    setRows(y, row);
+                }
+            }
+        });
 
         // we have an RGB image now
         type = new Type[height];
@@ -130,103 +259,317 @@ public class Image {
      * @param h  height
      */
     public Image(int w, int h) {
-        
-        width = w;
-        height = h;
-        pixel = new float[width][height][3];
-        weight = new float[width][height];
+        this(PixelStorage.create(w, h, 3));
+    }
+    
+    /**
+     * Constructs an empty image using the given kind of storage.
+     * @param w width
+     * @param h height
+     * @param kind of storage
+     */
+    public Image(int w, int h, PixelStorage.Kind kind) {
+        this(PixelStorage.create(kind, w, h, 3));
+    }
+    
+    /**
+     * Constructs an empty image with the given number of layers.
+     * @param w width
+     * @param h height
+     * @param depth number of layers, 1 for graylevel or 3 for color
+     */
+    public Image(int w, int h, int depth) {
+        this(PixelStorage.create(w, h, depth));
+    }
+    
+    /**
+     * Constructs an empty image with the given number of layers, using the
+     * given kind of storage.
+     * @param w width
+     * @param h height
+     * @param depth number of layers
+     * @param kind of storage, or null to choose it according to the size
+     */
+    public Image(int w, int h, int depth, PixelStorage.Kind kind) {
+        this((kind==null) ? PixelStorage.create(w, h, depth)
+                          : PixelStorage.create(kind, w, h, depth));
+    }
+    
+    /**
+     * Constructs an image around an existing storage.
+     * @param storage containing the values
+     */
+    public Image(PixelStorage storage) {
+        init(storage);
+    }
+    
+    private void init(PixelStorage storage) {
+        width = storage.getWidth();
+        height = storage.getHeight();
+        pixel = storage;
         type = new Type[height];
         for (int y=0; y<height; y++) {
             type[y] = Type.RGB;
         }
     }
     
+    /**
+     * Copies an image. Heap images are shared in a copy-on-write way, so
+     * that no value is copied before either image is modified.
+     * @param src image to copy
+     */
     public Image(Image src) {
-        this(src.width, src.height);
-        for (int x=0; x<src.width; x++) {
-            for (int y=0; y<src.height; y++) {
-                for (int l=0; l<3; l++) {
-                    pixel[x][y][l] = src.pixel[x][y][l];
-                }
+        this(src.share());
+    }
+    
+    /**
+     * Copies an image into the given kind of storage.
+     * @param src image to copy
+     * @param kind of storage
+     */
+    public Image(Image src, PixelStorage.Kind kind) {
+        this(src.width, src.height, src.getDepth(), kind);
+        float[] row = new float[width];
+        for (int l=0; l<getDepth(); l++) {
+            for (int y=0; y<height; y++) {
+                src.pixel.getRow(l, y, row, 0);
+                pixel.setRow(l, y, row, 0);
             }
         }
     }
     
+    /**
+     * Indicates whether copying this image is done in constant time, in a
+     * copy-on-write way, or requires copying all values.
+     * @return true if a copy shares the values of this image
+     */
+    public boolean canShare() {
+        return pixel instanceof CowStorage || CowStorage.canShare(pixel);
+    }
+    
+    /**
+     * Returns a storage with the same content as this image, which can be
+     * given to another image.
+     * @return a copy-on-write view if possible, or a copy of the values
+     */
+    protected PixelStorage share() {
+        unshare();
+        if (pixel instanceof CowStorage) {
+            return ((CowStorage)pixel).copy();
+        }
+        if (CowStorage.canShare(pixel)) {
+            CowStorage own = new CowStorage(pixel);
+            pixel = own;
+            return own.copy();
+        }
+        PixelStorage res = PixelStorage.create(pixel.getKind(), width, height, getDepth());
+        float[] row = new float[width];
+        for (int l=0; l<getDepth(); l++) {
+            for (int y=0; y<height; y++) {
+                pixel.getRow(l, y, row, 0);
+                res.setRow(l, y, row, 0);
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Stops the copy-on-write handling of the values once no other image
+     * shares them anymore, so that they are accessed directly again. This
+     * must not be called while the image is used by other threads.
+     */
+    public void unshare() {
+        if (pixel instanceof CowStorage) {
+            PixelStorage own = ((CowStorage)pixel).unwrap();
+            if (own!=null) {
+                pixel = own;
+            }
+        }
+    }
+    
+    /**
+     * @return the storage of the values
+     */
+    public PixelStorage getStorage() {
+        return pixel;
+    }
+    
+    /**
+     * Frees the storage of the image, giving its arrays back to the
+     * PlanePool. The image must not be used afterwards.
+     */
+    public void release() {
+        pixel.release();
+        if (weights!=null) {
+            weights.release();
+            weights = null;
+        }
+    }
+    
     public void write(String result) throws IOException {
-        if (result.endsWith("jpg")) {
-            write(result, "jpg");
-        } else if (result.endsWith("png")) {
-            write(result, "png");
-        } else {
-            throw new IllegalArgumentException(
-                    "Unknown extension for "+result+"; use either .jpg or .png"
-            );
+        write(result, getFormat(result));
+    }
+    
+    /**
+     * Finds the format of a file from its extension.
+     * @param fileName file name
+     * @return informal name of the format, as expected by write()
+     */
+    public static String getFormat(String fileName) {
+        if (fileName.endsWith("jpg")) {
+            return "jpg";
+        } else if (fileName.endsWith("png")) {
+            return "png";
+        } else if (fileName.endsWith("ppm") || fileName.endsWith("pnm")) {
+            return "ppm";
+        } else if (fileName.endsWith("flt")) {
+            return "flt";
+        } else if (fileName.endsWith("pfm")) {
+            return "pfm";
         }
+        throw new IllegalArgumentException(
+                "Unknown extension for "+fileName+"; use .jpg, .png, .ppm, .flt or .pfm"
+        );
     }
     
     /**
      * Save the image to a file.
      * @param result file name
+     * @param format informal name of the format, e.g., "png" or "jpg"
      * @throws IOException  if the file could not be written
      */
     public void write(String result, String format) throws IOException {
-        // going to RGB format
-        //toRGB();
-        
-        // building a buffered image
+        write(result, format, ImageEncoder.DEFAULT, ImageEncoder.DEFAULT);
+    }
+    
+    /**
+     * Save the image to a file.
+     * @param result file name
+     * @param format informal name of the format, e.g., "png" or "jpg"
+     * @param quality JPEG quality between 0 and 1, or ImageEncoder.DEFAULT
+     * @param compression PNG compression level between 0 and 9, or
+     *                    ImageEncoder.DEFAULT
+     * @throws IOException  if the file could not be written
+     */
+    public void write(String result, String format, float quality, int compression) throws IOException {
+        // float formats keep the values without quantization
+        if (format.equalsIgnoreCase("flt") || format.equalsIgnoreCase("pfm")) {
+            FloatImageIO.write(this, new File(result));
+            return;
+        }
+        // PNG and PNM files are streamed by bands, without a BufferedImage
+        if (format.equalsIgnoreCase("ppm") || format.equalsIgnoreCase("pnm")) {
+            new PnmWriter().write(this, new File(result));
+            return;
+        }
+        if (format.equalsIgnoreCase("png") && ImageEncoder.isBuiltinPng()) {
+            if (compression==ImageEncoder.DEFAULT) {
+                compression = ImageEncoder.getPngCompression();
+            }
+            if (compression==ImageEncoder.DEFAULT) {
+                compression = PngWriter.DEFAULT_LEVEL;
+            }
+            new PngWriter(compression).write(this, new File(result));
+            return;
+        }
+        ImageEncoder.write(toBufferedImage(), format, new File(result), quality, compression);
+    }
+    
+    /**
+     * Quantizes the image to 8 bits per channel. The rows are written in
+     * parallel bands directly into the raster of the result.
+     * @return a TYPE_INT_RGB image
+     */
+    public BufferedImage toBufferedImage() {
         BufferedImage bi = new BufferedImage(width,
                                              height,
                                              BufferedImage.TYPE_INT_RGB);
-        for (int x=0; x<width; x++) {
-            for (int y=0; y<height; y++) {
-                int color = 0x00;
-                for (int layer=0; layer<3; layer++) {
-                    int component = (int)(256*(pixel[x][y][layer]));
-                    if (component<0) {
-                        component=0;
-                    } else  if (component>255) {
-                        component = 255;
+        final int[] rgb = ((DataBufferInt)bi.getRaster().getDataBuffer()).getData();
+        Parallel.forRows(height, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                float[][] row = new float[getDepth()][width];
+                int last = getDepth()-1;
+                float[] r = row[0];
+                float[] g = row[Math.min(1, last)];
+                float[] b = row[Math.min(2, last)];
+                for (int y=y0; y<y1; y++) {
+                    getRows(y, row);
+                    for (int x=0, p=y*width; x<width; x++, p++) {
+                        rgb[p] = (quantize(r[x]) << 16)
+                               | (quantize(g[x]) << 8)
+                               |  quantize(b[x]);
                     }
-                    color = (color<<8) | component;
                 }
-                bi.setRGB(x, y, color);
             }
+        });
+        return bi;
+    }
+    
+    /**
+     * Quantizes a row to interleaved 8-bit RGB values, with the same
+     * rounding as toBufferedImage(). Graylevel rows give three equal
+     * components. Can be called concurrently for different rows.
+     * @param y row number
+     * @param row buffer with one array per layer
+     * @param dst destination
+     * @param off index of the first byte, 3*width bytes are written
+     */
+    void getRGBRow(int y, float[][] row, byte[] dst, int off) {
+        getRows(y, row);
+        int last = getDepth()-1;
+        float[] r = row[0];
+        float[] g = row[Math.min(1, last)];
+        float[] b = row[Math.min(2, last)];
+        for (int x=0, p=off; x<width; x++, p+=3) {
+            dst[p]   = (byte)quantize(r[x]);
+            dst[p+1] = (byte)quantize(g[x]);
+            dst[p+2] = (byte)quantize(b[x]);
         }
-        
-        // saving it
-        ImageIO.write(bi, format, new File(result));
+    }
+    
+    private static int quantize(float v) {
+        int component = (int)(256*v);
+        return (component<0) ? 0 : (component>255) ? 255 : component;
     }
     
     public void turnLeft() {
-        float[][][] px = new float[height][width][getDepth()];
-        int w          = width;
-        int h          = height;
+        PixelStorage px = PixelStorage.create(pixel.getKind(), height, width, getDepth());
+        int w           = width;
+        int h           = height;
         
-        for (int x=0; x<width; x++) {
+        // the pixel (x,y) goes to (y, w-1-x) in an image of width h
+        float[] row = new float[width];
+        for (int z=0; z<getDepth(); z++) {
             for (int y=0; y<height; y++) {
-                int tx = y;
-                int ty = width-1-x;
-                for (int z=0; z<getDepth(); z++) {
-                    px[tx][ty][z] = pixel[x][y][z];
+                pixel.getRow(z, y, row, 0);
+                for (int x=0; x<width; x++) {
+                    px.set(z, y, w-1-x, row[x]);
                 }
             }
         }
         
+        pixel.release();
         pixel  = px;
         width  = h;
         height = w;
+        if (weights!=null) {
+            // the counts would not match the rotated pixels anymore
+            weights.release();
+            weights = null;
+        }
+        type   = new Type[height];
+        for (int y=0; y<height; y++) {
+            type[y] = Type.RGB;
+        }
     }
     
     /**
      * Sets all pixels to (0,0,0)
      */
     public void toBlack() {
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                pixel[x][y][0] = 0.0f;
-                pixel[x][y][1] = 0.0f;
-                pixel[x][y][2] = 0.0f;
-            }
+        for (int l=0; l<getDepth(); l++) {
+            layerToBlack(l);
         }
     }
     
@@ -235,10 +578,9 @@ public class Image {
      * @param layer number
      */
     public void layerToBlack(int layer) {
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                pixel[x][y][layer] = 0.0f;
-            }
+        float[] row = new float[width];
+        for (int y=0; y<height; y++) {
+            pixel.setRow(layer, y, row, 0);
         }
     }
     
@@ -247,16 +589,19 @@ public class Image {
      * all layers.
      */
     public void toGrayLevel() {
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                float r    = pixel[x][y][0];
-                float g    = pixel[x][y][0];
-                float b    = pixel[x][y][0];
+        float[][] row = new float[3][width];
+        for (int y=0; y<height; y++) {
+            getRows(y, row);
+            for (int x=0; x<width; x++) {
+                float r    = row[0][x];
+                float g    = row[0][x];
+                float b    = row[0][x];
                 float gray = (r+g+b) / 3.0f;
-                pixel[x][y][0] = gray;
-                pixel[x][y][0] = gray;
-                pixel[x][y][0] = gray;
+                row[0][x] = gray;
+                row[0][x] = gray;
+                row[0][x] = gray;
             }
+            setRows(y, row);
         }
     }
     
@@ -272,8 +617,8 @@ public class Image {
     public float get(int layer, int x, int y) {
         if (layer<0) {
             layer = 0;
-        } else if (layer>=pixel[0][0].length) {
-            layer = pixel[0][0].length-1;
+        } else if (layer>=getDepth()) {
+            layer = getDepth()-1;
         }
         if (x<0) {
             x = 0;
@@ -285,7 +630,7 @@ public class Image {
         } else if (y>=height) {
             y = height-1;
         }
-        return pixel[x][y][layer];
+        return pixel.get(layer, x, y);
     }
 
     /**
@@ -296,16 +641,79 @@ public class Image {
      * @param value to assign
      */
     public void set(int layer, int x, int y, float value) {
-        pixel[x][y][layer] = value;
+        pixel.set(layer, x, y, value);
+    }
+    
+    /**
+     * Copies a row of a layer into an array. As with get(), a layer
+     * beyond the depth of the image reads the last one, so that graylevel
+     * images can be used where color ones are expected.
+     * @param layer color channel
+     * @param y row number
+     * @param dst destination array, or null to allocate a new one
+     * @return the array containing the row
+     */
+    public float[] getRow(int layer, int y, float[] dst) {
+        if (dst==null) {
+            dst = new float[width];
+        }
+        if (layer>=getDepth()) {
+            layer = getDepth()-1;
+        }
+        pixel.getRow(layer, y, dst, 0);
+        return dst;
+    }
+    
+    /**
+     * Replaces a row of a layer by the content of an array.
+     * @param layer color channel
+     * @param y row number
+     * @param src array containing at least width values
+     */
+    public void setRow(int layer, int y, float[] src) {
+        pixel.setRow(layer, y, src, 0);
+    }
+    
+    /**
+     * Copies a row of all layers into arrays.
+     * @param y row number
+     * @param dst one array per layer
+     */
+    protected void getRows(int y, float[][] dst) {
+        for (int l=0; l<getDepth(); l++) {
+            pixel.getRow(l, y, dst[l], 0);
+        }
+    }
+    
+    /**
+     * Replaces a row of all layers.
+     * @param y row number
+     * @param src one array per layer
+     */
+    protected void setRows(int y, float[][] src) {
+        for (int l=0; l<getDepth(); l++) {
+            pixel.setRow(l, y, src[l], 0);
+        }
     }
 
+    /**
+     * Minimum number of rows given to a thread by the bulk conversions.
+     */
+    private static final int MIN_BAND_ROWS = 16;
+    
     /**
      * Changes the color space of the image
      */
     public void toYUV() {
-        for (int y=0; y<height; y++) {
-            toYUV(y);
-        }
+        Parallel.forRows(height, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                float[][] row = new float[getDepth()][width];
+                for (int y=y0; y<y1; y++) {
+                    toYUV(y, row);
+                }
+            }
+        });
     }
     
     /**
@@ -316,24 +724,38 @@ public class Image {
         if (y<0 || y>=getHeight()) {
             return;
         }
-        switch (type[y]) {
-            case RGB:
-                rgb2yuv(y);
-                break;
-            case HSV:
-                hsv2rgb(y);
-                rgb2yuv(y);
-                break;
+        toYUV(y, getRowBuffer());
+    }
+    
+    private void toYUV(int y, float[][] row) {
+        if (type[y]==Type.YUV) {
+            return;
+        }
+        if (getDepth()>=3) {
+            getRows(y, row);
+            if (type[y]==Type.HSV) {
+                hsv2rgb(row[0], row[1], row[2], width);
+            }
+            rgb2yuv(row[0], row[1], row[2], width);
+            setRows(y, row);
         }
+        // a graylevel value is its own luminance
+        type[y] = Type.YUV;
     }
 
     /**
      * Changes the color space.
      */
     public void toRGB() {
-        for (int y=0; y<height; y++) {
-            toRGB(y);
-        }
+        Parallel.forRows(height, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                float[][] row = new float[getDepth()][width];
+                for (int y=y0; y<y1; y++) {
+                    toRGB(y, row);
+                }
+            }
+        });
     }
     
     /**
@@ -341,23 +763,38 @@ public class Image {
      * @param y row number
      */
     public void toRGB(int y) {
-        switch (type[y]) {
-            case YUV:
-                yuv2rgb(y);
-                break;
-            case HSV:
-                hsv2rgb(y);
-                break;
+        toRGB(y, getRowBuffer());
+    }
+    
+    private void toRGB(int y, float[][] row) {
+        if (type[y]==Type.RGB) {
+            return;
+        }
+        if (getDepth()>=3) {
+            getRows(y, row);
+            if (type[y]==Type.YUV) {
+                yuv2rgb(row[0], row[1], row[2], width);
+            } else {
+                hsv2rgb(row[0], row[1], row[2], width);
+            }
+            setRows(y, row);
         }
+        type[y] = Type.RGB;
     }
     
     /**
      * Changes the color space.
      */
     public void toHSV() {
-        for (int y=0; y<height; y++) {
-            toHSV(y);
-        }
+        Parallel.forRows(height, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                float[][] row = new float[getDepth()][width];
+                for (int y=y0; y<y1; y++) {
+                    toHSV(y, row);
+                }
+            }
+        });
     }
     
     /**
@@ -365,182 +802,224 @@ public class Image {
      * @param y row number
      */
     public void toHSV(int y) {
-        switch (type[y]) {
-            case YUV:
-                yuv2rgb(y);
-                rgb2hsv(y);
-                break;
-            case RGB:
-                rgb2hsv(y);
-                break;
+        toHSV(y, getRowBuffer());
+    }
+    
+    private void toHSV(int y, float[][] row) {
+        if (type[y]==Type.HSV) {
+            return;
+        }
+        if (getDepth()>=3) {
+            getRows(y, row);
+            if (type[y]==Type.YUV) {
+                yuv2rgb(row[0], row[1], row[2], width);
+            }
+            rgb2hsv(row[0], row[1], row[2], width);
+            setRows(y, row);
         }
+        // the value of a gray pixel is its level
+        type[y] = Type.HSV;
     }
 
     /**
-     * Changes the color space of a given row.
-     * @param y row number
+     * Converts planar RGB values to YUV, in place.
+     * @param l0 red, then Y
+     * @param l1 green, then U
+     * @param l2 blue, then V
+     * @param n number of values
      */
-    protected void rgb2yuv(int y) {
-        for (int x = 0; x < width; x++) {
-            float r = pixel[x][y][0];
-            float g = pixel[x][y][1];
-            float b = pixel[x][y][2];
-            pixel[x][y][0] = 0.299f * r + 0.587f * g + 0.114f * b;
-            pixel[x][y][1] = (-0.14713f * r - 0.28886f * g + 0.436f * b) / 0.436f / 2 + 0.5f;
-            pixel[x][y][2] = (0.615f * r - 0.51498f * g - 0.10001f * b) / 0.615f / 2 + 0.5f;
+    public static void rgb2yuv(float[] l0, float[] l1, float[] l2, int n) {
+        for (int p=0; p<n; p++) {
+            float r = l0[p];
+            float g = l1[p];
+            float b = l2[p];
+            l0[p] = 0.299f * r + 0.587f * g + 0.114f * b;
+            l1[p] = (-0.14713f * r - 0.28886f * g + 0.436f * b) / 0.436f / 2 + 0.5f;
+            l2[p] = (0.615f * r - 0.51498f * g - 0.10001f * b) / 0.615f / 2 + 0.5f;
         }
-        type[y] = Type.YUV;
     }
 
     /**
-     * Changes the color space of a given row.
-     * @param py row number
+     * Converts planar YUV values to RGB, in place.
+     * @param l0 Y, then red
+     * @param l1 U, then green
+     * @param l2 V, then blue
+     * @param n number of values
      */
-    protected void yuv2rgb(int py) {
-        for (int x = 0; x < width; x++) {
-            float y = pixel[x][py][0];
-            float u = (pixel[x][py][1]-0.5f)*2*0.436f;
-            float v = (pixel[x][py][2]-0.5f)*2*0.615f;
-            pixel[x][py][0] = y + 1.13983f * v;
-            pixel[x][py][1] = y - 0.39465f * u - 0.58060f * v;
-            pixel[x][py][2] = y + 2.03211f * u;
+    public static void yuv2rgb(float[] l0, float[] l1, float[] l2, int n) {
+        for (int p=0; p<n; p++) {
+            float y = l0[p];
+            float u = (l1[p]-0.5f)*2*0.436f;
+            float v = (l2[p]-0.5f)*2*0.615f;
+            l0[p] = y + 1.13983f * v;
+            l1[p] = y - 0.39465f * u - 0.58060f * v;
+            l2[p] = y + 2.03211f * u;
         }
-        type[py] = Type.RGB;
     }
     
     /**
-     * Changes the color space of a given row.
-     * @param y row number
+     * Converts planar RGB values to HSV, in place. The loop has no
+     * data-dependent branch so that it can be vectorized by the JIT.
+     * Note that "max" holds the smallest component and "min" the largest
+     * one, as in the original implementation.
+     * @param l0 red, then hue
+     * @param l1 green, then saturation
+     * @param l2 blue, then value
+     * @param n number of values
      */
-    protected void rgb2hsv(int y) {
-        for (int x=0; x<width; x++) {
-            float max = pixel[x][y][0];
-            float min = max;
-            for (int i=1; i<3; i++) {
-                if (max>pixel[x][y][i]) {
-                    max = pixel[x][y][i];
-                }
-                if (min<pixel[x][y][i]) {
-                    min = pixel[x][y][i];
-                }
-            }
-            float r = pixel[x][y][0];
-            float g = pixel[x][y][1];
-            float b = pixel[x][y][2];
-            float h = 0;
-            if (max!=min) {
-                if (max==r) {
-                    h = (g-b)/(max-min)/6.0f + 1;
-                } else if (max==g) {
-                    h = (b-r)/(max-min)/6.0f + 1.0f/3.0f;
-                } else if (max==b) {
-                    h = (r-g)/(max-min)/6.0f + 2.0f/3.0f;
-                }
-                while (h>1.0f) {
-                    h-=1.0f;
-                }
-            }
-            float s = (max==0) ? 0 : 1.0f-min/max;
-            float v = max;
-            pixel[x][y][0] = h;
-            pixel[x][y][1] = s;
-            pixel[x][y][2] = v;
+    public static void rgb2hsv(float[] l0, float[] l1, float[] l2, int n) {
+        for (int p=0; p<n; p++) {
+            float r = l0[p];
+            float g = l1[p];
+            float b = l2[p];
+            float max = Math.min(Math.min(r, g), b);
+            float min = Math.max(Math.max(r, g), b);
+            float d = max-min;
+            float h = (max==r) ? (g-b)/d/6.0f + 1
+                    : (max==g) ? (b-r)/d/6.0f + 1.0f/3.0f
+                    :            (r-g)/d/6.0f + 2.0f/3.0f;
+            h = (h>1.0f) ? h-1.0f : h;
+            h = (max!=min) ? h : 0;
+            l0[p] = h;
+            l1[p] = (max==0) ? 0 : 1.0f-min/max;
+            l2[p] = max;
         }
-        type[y] = Type.HSV;
     }
     
     /**
-     * Changes the color space of a given row.
-     * @param y row number
+     * Converts planar HSV values to RGB, in place.
+     * @param l0 hue, then red
+     * @param l1 saturation, then green
+     * @param l2 value, then blue
+     * @param n number of values
      */
-    protected void hsv2rgb(int y) {
-        for (int x=0; x<width; x++) {
-            float h = pixel[x][y][0];
-            float s = pixel[x][y][1];
-            float v = pixel[x][y][2];
+    public static void hsv2rgb(float[] l0, float[] l1, float[] l2, int n) {
+        for (int p=0; p<n; p++) {
+            float h = l0[p];
+            float s = l1[p];
+            float v = l2[p];
             int hi = (int)(6.0f*h);
             float f = 6.0f*h - hi;
             float l = v * (1.0f-s);
             float m = v * (1.0f - f*s);
-            float n = v * (1.0f - (1-0f-f)*s);
+            float k = v * (1.0f - (1-0f-f)*s);
             switch (hi) {
                 case 0:
-                    pixel[x][y][0] = v;
-                    pixel[x][y][1] = n;
-                    pixel[x][y][2] = l;
+                    l0[p] = v;
+                    l1[p] = k;
+                    l2[p] = l;
                     break;
                  case 1:
-                    pixel[x][y][0] = m;
-                    pixel[x][y][1] = v;
-                    pixel[x][y][2] = l;
+                    l0[p] = m;
+                    l1[p] = v;
+                    l2[p] = l;
                     break;
                  case 2:
-                    pixel[x][y][0] = l;
-                    pixel[x][y][1] = v;
-                    pixel[x][y][2] = n;
+                    l0[p] = l;
+                    l1[p] = v;
+                    l2[p] = k;
                     break;
                  case 3:
-                    pixel[x][y][0] = l;
-                    pixel[x][y][1] = m;
-                    pixel[x][y][2] = v;
+                    l0[p] = l;
+                    l1[p] = m;
+                    l2[p] = v;
                     break;
                  case 4:
-                    pixel[x][y][0] = n;
-                    pixel[x][y][1] = l;
-                    pixel[x][y][2] = v;
+                    l0[p] = k;
+                    l1[p] = l;
+                    l2[p] = v;
                     break;
                  case 5:
-                    pixel[x][y][0] = v;
-                    pixel[x][y][1] = l;
-                    pixel[x][y][2] = m;
+                    l0[p] = v;
+                    l1[p] = l;
+                    l2[p] = m;
                     break;
             }
         }
-        type[y] = Type.RGB;
+    }
+    
+    /**
+     * Returns a buffer large enough for a row of each layer.
+     * @return the buffer
+     */
+    private float[][] getRowBuffer() {
+        if (rowBuffer==null || rowBuffer[0].length<width) {
+            rowBuffer = new float[getDepth()][width];
+        }
+        return rowBuffer;
     }
     
     /**
      * Substract the values to 1.
      */
     public void invert() {
-        for (int x=0; x<width; x++) {
+        float[] row = new float[width];
+        for (int l=0; l<getDepth(); l++) {
             for (int y=0; y<height; y++) {
-                for (int l=0; l<3; l++) {
-                    pixel[x][y][l] = 1-pixel[x][y][l];
+                pixel.getRow(l, y, row, 0);
+                for (int x=0; x<width; x++) {
+                    row[x] = 1-row[x];
                 }
+                pixel.setRow(l, y, row, 0);
             }
         }
     }
     
-
+    /**
+     * @return the number of layers, 1 for graylevel images and 3 for color
+     */
     public int getDepth() {
-        return 3;
+        return pixel.getDepth();
     }
 
 
+    /**
+     * Returns the values of all layers of a pixel. As the layers are stored
+     * separately, this is a copy.
+     * @param x coordinate
+     * @param y coordinate
+     * @return a new array
+     */
     public float[] getValues(int x, int y) {
-        return pixel[x][y];
+        float[] res = new float[getDepth()];
+        for (int l=0; l<res.length; l++) {
+            res[l] = pixel.get(l, x, y);
+        }
+        return res;
     }
 
 
+    /**
+     * Adds values to a pixel and counts them, so that normalizeWeights()
+     * can compute their mean.
+     * @param source array containing one value per layer
+     * @param from index of the first value
+     * @param x coordinate
+     * @param y coordinate
+     */
     public void weightedPaste(float[] source, int from, int x, int y) {
-        for (int i=0; i<pixel[x][y].length; i++) {
-            pixel[x][y][i] += source[from+i];
+        for (int i=0; i<getDepth(); i++) {
+            pixel.set(i, x, y, pixel.get(i, x, y) + source[from+i]);
+        }
+        if (weights==null) {
+            weights = new WeightAccumulator(width, height);
         }
-       weight[x][y]+=1.0f;
+        weights.add(x, y, 1.0f);
     }
     
     public void normalize() {
         float min = Float.MAX_VALUE;
         float max = Float.MIN_VALUE;
-        for (int x=0; x<width; x++) {
+        float[] row = new float[width];
+        for (int l=0; l<getDepth(); l++) {
             for (int y=0; y<height; y++) {
-                for (int l=0; l<pixel[x][y].length; l++) {
-                    if (pixel[x][y][l]>max) {
-                        max = pixel[x][y][l];
+                pixel.getRow(l, y, row, 0);
+                for (int x=0; x<width; x++) {
+                    if (row[x]>max) {
+                        max = row[x];
                     }
-                    if (pixel[x][y][l]<min) {
-                        min = pixel[x][y][l];
+                    if (row[x]<min) {
+                        min = row[x];
                     }
                 }
             }
@@ -548,34 +1027,32 @@ public class Image {
         if (max==min) {
             return;
         }
-        for (int x=0; x<width; x++) {
+        for (int l=0; l<getDepth(); l++) {
             for (int y=0; y<height; y++) {
-                for (int l=0; l<pixel[x][y].length; l++) {
-                    pixel[x][y][l] = 2*(pixel[x][y][l]-min) / (max-min)-1;
+                pixel.getRow(l, y, row, 0);
+                for (int x=0; x<width; x++) {
+                    row[x] = 2*(row[x]-min) / (max-min)-1;
                 }
+                pixel.setRow(l, y, row, 0);
             }
         }
     }
     
+    /**
+     * Divides the pasted values by the number of pastes. Nothing happens if
+     * no weighted paste was done.
+     */
     public void normalizeWeights() {
-        for (int x=0; x<width; x++) {
-            for (int y=0; y<height; y++) {
-                if (weight[x][y]==0.0f) {
-                    continue;
-                }
-                for (int l=0; l<pixel[x][y].length; l++) {
-                    pixel[x][y][l] /= weight[x][y];
-                }
-                weight[x][y] = 1.0f;
-            }
+        if (weights!=null) {
+            weights.normalize(this);
         }
     }
     
     public void normalizePatch(int x, int y, int w, int h) {
         float min = Float.POSITIVE_INFINITY;
         float max = Float.NEGATIVE_INFINITY;
-        for (int px=x; px-x<w; px++) {
-            for (int py=y; py-y<h; py++) {
+        for (int py=y; py-y<h; py++) {
+            for (int px=x; px-x<w; px++) {
                 for (int l=0; l<getDepth(); l++) {
                     float v = get(l, px, py);
                     if (v<min) {
@@ -591,8 +1068,8 @@ public class Image {
             return;
         }
         System.out.print("Normalize patch "+w+"x"+h+", from ["+min+" "+max+"] to ");
-        for (int px=x; px-x<w; px++) {
-            for (int py=y; py-y<h; py++) {
+        for (int py=y; py-y<h; py++) {
+            for (int px=x; px-x<w; px++) {
                 for (int l=0; l<getDepth(); l++) {
                     float v = get(l, px, py);
                     set(l, px, py, 2*(v-min)/(max-min)-1);
@@ -602,8 +1079,8 @@ public class Image {
         
         min = Float.MAX_VALUE;
         max = Float.MIN_VALUE;
-        for (int px=x; px-x<w; px++) {
-            for (int py=y; py-y<h; py++) {
+        for (int py=y; py-y<h; py++) {
+            for (int px=x; px-x<w; px++) {
                 for (int l=0; l<getDepth(); l++) {
                     float v = get(l, px, py);
                     if (v<min) {
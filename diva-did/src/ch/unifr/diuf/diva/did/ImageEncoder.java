@@ -0,0 +1,199 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes images to files, reusing the ImageWriter instances between saves
+ * instead of looking them up each time. The JPEG quality and the PNG
+ * compression level can be chosen for each save, or globally.
+ * @author Mathias Seuret
+ */
+public class ImageEncoder {
+    
+    /**
+     * Value meaning that the default of the encoder is used.
+     */
+    public static final int DEFAULT = -1;
+    
+    private static final Map<String, ArrayDeque<ImageWriter>> idle = new HashMap<>();
+    
+    private static float   jpegQuality    = DEFAULT;
+    private static int     pngCompression = DEFAULT;
+    private static boolean builtinPng     = true;
+    
+    private ImageEncoder() {
+        // only static methods
+    }
+    
+    /**
+     * Sets the JPEG quality used when none is specified for a save.
+     * @param quality between 0 and 1, or DEFAULT
+     */
+    public static void setJpegQuality(float quality) {
+        if (quality!=DEFAULT && (quality<0 || quality>1)) {
+            throw new IllegalArgumentException("The JPEG quality must be between 0 and 1");
+        }
+        jpegQuality = quality;
+    }
+    
+    /**
+     * Sets the PNG compression level used when none is specified for a
+     * save. Low levels are faster, high levels give smaller files.
+     * @param level between 0 and 9, or DEFAULT
+     */
+    public static void setPngCompression(int level) {
+        if (level!=DEFAULT && (level<0 || level>9)) {
+            throw new IllegalArgumentException("The PNG compression level must be between 0 and 9");
+        }
+        pngCompression = level;
+    }
+    
+    /**
+     * @return the PNG compression level used when none is specified, or
+     *         DEFAULT
+     */
+    public static int getPngCompression() {
+        return pngCompression;
+    }
+    
+    /**
+     * Chooses how images are saved as PNG by Image.write().
+     * @param builtin true for the multi-threaded PngWriter, false for the
+     *                ImageIO encoder
+     */
+    public static void setBuiltinPng(boolean builtin) {
+        builtinPng = builtin;
+    }
+    
+    /**
+     * @return true if Image.write() uses PngWriter for PNG files
+     */
+    public static boolean isBuiltinPng() {
+        return builtinPng;
+    }
+    
+    /**
+     * Writes an image with the global settings.
+     * @param bi image to write
+     * @param format informal name of the format, e.g., "png" or "jpg"
+     * @param file destination
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(BufferedImage bi, String format, File file) throws IOException {
+        write(bi, format, file, DEFAULT, DEFAULT);
+    }
+    
+    /**
+     * Writes an image.
+     * @param bi image to write
+     * @param format informal name of the format, e.g., "png" or "jpg"
+     * @param file destination
+     * @param quality JPEG quality between 0 and 1, or DEFAULT
+     * @param compression PNG compression level between 0 and 9, or DEFAULT
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(BufferedImage bi, String format, File file,
+                             float quality, int compression) throws IOException {
+        if (quality==DEFAULT) {
+            quality = jpegQuality;
+        }
+        if (compression==DEFAULT) {
+            compression = pngCompression;
+        }
+        
+        ImageWriter writer = take(format);
+        try {
+            ImageWriteParam param = null;
+            if (isJpeg(format) && quality!=DEFAULT) {
+                param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            } else if (format.equalsIgnoreCase("png") && compression!=DEFAULT) {
+                // the PNG writer uses the deflate level 9*(1-quality)
+                param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(Math.max(0.0f, 1.0f - (compression+0.5f)/9.0f));
+            }
+            
+            // as ImageIO.write(), never leave the tail of an older file
+            file.delete();
+            ImageOutputStream out = ImageIO.createImageOutputStream(file);
+            if (out==null) {
+                throw new IOException("Cannot create "+file);
+            }
+            try {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(bi, null, null), param);
+            } finally {
+                out.close();
+            }
+        } finally {
+            giveBack(format, writer);
+        }
+    }
+    
+    private static boolean isJpeg(String format) {
+        return format.equalsIgnoreCase("jpg") || format.equalsIgnoreCase("jpeg");
+    }
+    
+    private static ImageWriter take(String format) throws IOException {
+        String key = format.toLowerCase();
+        synchronized (idle) {
+            ArrayDeque<ImageWriter> q = idle.get(key);
+            if (q!=null && !q.isEmpty()) {
+                return q.pop();
+            }
+        }
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format);
+        if (!it.hasNext()) {
+            throw new IOException("No encoder found for the format "+format);
+        }
+        return it.next();
+    }
+    
+    private static void giveBack(String format, ImageWriter writer) {
+        writer.reset();
+        String key = format.toLowerCase();
+        synchronized (idle) {
+            ArrayDeque<ImageWriter> q = idle.get(key);
+            if (q==null) {
+                q = new ArrayDeque<>();
+                idle.put(key, q);
+            }
+            q.push(writer);
+        }
+    }
+}
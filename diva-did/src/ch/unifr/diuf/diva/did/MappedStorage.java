@@ -0,0 +1,193 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stores the layers of an image in a memory-mapped file, so that images
+ * larger than the heap can be processed. The layers are stored one after
+ * the other, in row-major order. As a single mapping cannot exceed 2GB,
+ * each layer is mapped as several segments of full rows.
+ * @author Mathias Seuret
+ */
+public class MappedStorage extends PixelStorage {
+    
+    /**
+     * Maximum size of a mapped segment, in bytes.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+    
+    /**
+     * Folder in which the scratch files are created; null for the
+     * default temporary folder.
+     */
+    private static File scratchFolder = null;
+    
+    protected File file;
+    protected long offset;
+    protected boolean temporary;
+    protected FileChannel.MapMode mode;
+    protected int rowsPerSegment;
+    /**
+     * First index: layer, second index: segment.
+     */
+    protected FloatBuffer[][] segment;
+    
+    /**
+     * Creates a storage in a new scratch file, deleted when the storage
+     * is released or when the JVM exits.
+     * @param width of the image
+     * @param height of the image
+     * @param depth number of layers
+     */
+    public MappedStorage(int width, int height, int depth) {
+        super(width, height, depth);
+        try {
+            file = File.createTempFile("divadid-", ".planes", scratchFolder);
+            file.deleteOnExit();
+            temporary = true;
+            map(0, FileChannel.MapMode.READ_WRITE);
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "Cannot create scratch file for a "+width+"x"+height+" image", e
+            );
+        }
+    }
+    
+    /**
+     * Maps the layers stored in an existing file.
+     * @param file containing the layers
+     * @param offset position of the first layer in the file, in bytes
+     * @param width of the image
+     * @param height of the image
+     * @param depth number of layers
+     * @param mode mapping mode; use PRIVATE to avoid modifying the file
+     * @throws IOException if the file cannot be mapped
+     */
+    public MappedStorage(File file, long offset, int width, int height, int depth, FileChannel.MapMode mode) throws IOException {
+        super(width, height, depth);
+        this.file = file;
+        temporary = false;
+        map(offset, mode);
+    }
+    
+    private void map(long offset, FileChannel.MapMode mode) throws IOException {
+        this.offset = offset;
+        this.mode   = mode;
+        long rowSize   = 4L*width;
+        rowsPerSegment = (int)Math.max(1, Math.min(height, SEGMENT_SIZE/rowSize));
+        int nbSegments = (height+rowsPerSegment-1) / rowsPerSegment;
+        segment = new FloatBuffer[depth][nbSegments];
+        
+        // private mappings also require a writable channel
+        String access = (mode==FileChannel.MapMode.READ_ONLY) ? "r" : "rw";
+        try (RandomAccessFile raf = new RandomAccessFile(file, access);
+             FileChannel channel = raf.getChannel()) {
+            long pos = offset;
+            for (int l=0; l<depth; l++) {
+                for (int s=0; s<nbSegments; s++) {
+                    int rows = Math.min(rowsPerSegment, height-s*rowsPerSegment);
+                    segment[l][s] = channel.map(mode, pos, rows*rowSize)
+                                           .order(ByteOrder.LITTLE_ENDIAN)
+                                           .asFloatBuffer();
+                    pos += rows*rowSize;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sets the folder in which scratch files are created.
+     * @param folder an existing folder, or null for the default one
+     */
+    public static void setScratchFolder(File folder) {
+        scratchFolder = folder;
+    }
+    
+    /**
+     * @return the folder in which scratch files are created, or null
+     */
+    public static File getScratchFolder() {
+        return scratchFolder;
+    }
+    
+    /**
+     * Returns the file containing the current values of the layers, which
+     * is not the case of a private mapping once it has been modified.
+     * @return the file, or null if the mapping is not shared
+     */
+    public File getBackingFile() {
+        return (mode==FileChannel.MapMode.READ_WRITE) ? file : null;
+    }
+    
+    /**
+     * @return the position of the first layer in the file, in bytes
+     */
+    public long getOffset() {
+        return offset;
+    }
+    
+    @Override
+    public Kind getKind() {
+        return Kind.MAPPED;
+    }
+
+    @Override
+    public float get(int layer, int x, int y) {
+        return segment[layer][y/rowsPerSegment].get((y%rowsPerSegment)*width+x);
+    }
+
+    @Override
+    public void set(int layer, int x, int y, float value) {
+        segment[layer][y/rowsPerSegment].put((y%rowsPerSegment)*width+x, value);
+    }
+    
+    @Override
+    public void getRow(int layer, int y, float[] dst, int off) {
+        // a duplicate has its own position, so that threads do not interfere
+        FloatBuffer b = segment[layer][y/rowsPerSegment].duplicate();
+        b.position((y%rowsPerSegment)*width);
+        b.get(dst, off, width);
+    }
+    
+    @Override
+    public void setRow(int layer, int y, float[] src, int off) {
+        FloatBuffer b = segment[layer][y/rowsPerSegment].duplicate();
+        b.position((y%rowsPerSegment)*width);
+        b.put(src, off, width);
+    }
+    
+    @Override
+    public void release() {
+        segment = null;
+        if (temporary) {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Multigrid solver for a PoissonProblem. Each coarser level keeps every
+ * other point of the previous one in each direction, while the zero
+ * boundary stays at the same place: the spacing may thus differ next to the
+ * last points, and the coarse operators take it into account. Residuals
+ * are restricted by the transpose of the linear interpolation used for
+ * prolongating the corrections. The smoother is a red-black Gauss-Seidel,
+ * whose colours are updated by bands of rows in parallel, so that the number
+ * of cycles does not depend on the size of the image.
+ * @author Mathias Seuret
+ */
+public class Multigrid {
+    
+    /**
+     * Default maximum number of cycles.
+     */
+    public static final int DEFAULT_MAX_CYCLES = 30;
+    
+    /**
+     * Default tolerance, relative to the initial residual norm.
+     */
+    public static final float DEFAULT_TOLERANCE = 1e-5f;
+    
+    /**
+     * Smoothing sweeps before and after each coarse-grid correction.
+     */
+    private static final int PRE_SMOOTHING = 2;
+    private static final int POST_SMOOTHING = 2;
+    
+    /**
+     * Levels having at most that many points in each direction are solved
+     * by Gauss-Seidel sweeps only.
+     */
+    private static final int COARSEST_SIZE = 4;
+    private static final int COARSEST_SWEEPS = 50;
+    
+    /**
+     * Minimum number of rows given to a thread.
+     */
+    private static final int MIN_BAND_ROWS = 16;
+    
+    /**
+     * Points of a level along one direction, with the coefficients of the
+     * second derivative and the interpolation from the next coarser level.
+     */
+    private static class Axis {
+        final int n;
+        /**
+         * Positions, in units of the finest grid; the boundaries are at -1
+         * and at the number of points of the finest grid.
+         */
+        final float[] pos;
+        /**
+         * Coefficients of the previous and next points.
+         */
+        final float[] prev;
+        final float[] next;
+        /**
+         * Interpolation of each point from at most two coarse points, an
+         * index out of the coarse axis standing for the boundary.
+         */
+        int[] c0, c1;
+        float[] w0, w1;
+        /**
+         * Sum of the interpolation weights of each coarse point.
+         */
+        float[] weightSum;
+        boolean coarsened;
+        
+        Axis(float[] pos, float boundary) {
+            this.pos = pos;
+            n = pos.length;
+            prev = new float[n];
+            next = new float[n];
+            for (int i=0; i<n; i++) {
+                float hl = pos[i] - ((i>0) ? pos[i-1] : -1);
+                float hr = ((i<n-1) ? pos[i+1] : boundary) - pos[i];
+                prev[i] = 2 / (hl*(hl+hr));
+                next[i] = 2 / (hr*(hl+hr));
+            }
+        }
+        
+        /**
+         * @return the axis of the next level, every other point being kept
+         *         if there are at least three of them
+         */
+        Axis coarsen(float boundary) {
+            coarsened = n>=3;
+            float[] cpos;
+            if (coarsened) {
+                cpos = new float[(n-1)/2];
+                for (int i=0; i<cpos.length; i++) {
+                    cpos[i] = pos[2*i+1];
+                }
+            } else {
+                cpos = pos.clone();
+            }
+            Axis coarse = new Axis(cpos, boundary);
+            
+            c0 = new int[n];
+            c1 = new int[n];
+            w0 = new float[n];
+            w1 = new float[n];
+            weightSum = new float[coarse.n];
+            for (int i=0; i<n; i++) {
+                if (!coarsened) {
+                    c0[i] = i;
+                    w0[i] = 1;
+                    c1[i] = -1;
+                    continue;
+                }
+                // coarse points on both sides of i
+                int l = (i-1)/2;
+                if (i%2==0 || l>=coarse.n) {
+                    l = Math.min(i/2-1, coarse.n-1);
+                }
+                int r = (i%2==1 && (i-1)/2<coarse.n) ? l : l+1;
+                float xl = (l>=0) ? cpos[l] : -1;
+                float xr = (r<coarse.n) ? cpos[r] : boundary;
+                if (l==r) {
+                    c0[i] = l;
+                    w0[i] = 1;
+                    c1[i] = -1;
+                } else {
+                    c0[i] = l;
+                    w0[i] = (xr-pos[i]) / (xr-xl);
+                    c1[i] = r;
+                    w1[i] = (pos[i]-xl) / (xr-xl);
+                }
+            }
+            for (int i=0; i<n; i++) {
+                if (c0[i]>=0 && c0[i]<coarse.n) {
+                    weightSum[c0[i]] += w0[i];
+                }
+                if (c1[i]>=0 && c1[i]<coarse.n) {
+                    weightSum[c1[i]] += w1[i];
+                }
+            }
+            return coarse;
+        }
+        
+        /**
+         * @return the interpolation weight of a coarse point for point i
+         */
+        float weight(int i, int c) {
+            return ((c0[i]==c) ? w0[i] : 0) + ((c1[i]==c) ? w1[i] : 0);
+        }
+        
+        /**
+         * @return the first point interpolated from coarse point c
+         */
+        int first(int c) {
+            return coarsened ? 2*c : c;
+        }
+        
+        /**
+         * @return the last point interpolated from coarse point c
+         */
+        int last(int c, int nc) {
+            if (!coarsened) {
+                return c;
+            }
+            return (c==nc-1) ? n-1 : 2*c+2;
+        }
+    }
+    
+    /**
+     * Grid of one level.
+     */
+    private static class Level {
+        final Axis ax;
+        final Axis ay;
+        final int nx;
+        final int ny;
+        final float[] u;
+        final float[] f;
+        final float[] r;
+        
+        Level(Axis ax, Axis ay, float[] u, float[] f) {
+            this.ax = ax;
+            this.ay = ay;
+            nx = ax.n;
+            ny = ay.n;
+            this.u = u;
+            this.f = f;
+            r = new float[nx*ny];
+        }
+    }
+    
+    private final PoissonProblem problem;
+    private final Level[] levels;
+    private final boolean wCycle;
+    
+    /**
+     * Prepares the levels of a problem.
+     * @param problem to solve
+     * @param wCycle true for W-cycles, false for V-cycles
+     */
+    public Multigrid(PoissonProblem problem, boolean wCycle) {
+        this.problem = problem;
+        this.wCycle = wCycle;
+        int nx = problem.getWidth();
+        int ny = problem.getHeight();
+        float[] px = new float[nx];
+        for (int i=0; i<nx; i++) {
+            px[i] = i;
+        }
+        float[] py = new float[ny];
+        for (int j=0; j<ny; j++) {
+            py[j] = j;
+        }
+        List<Level> list = new ArrayList<>();
+        Axis ax = new Axis(px, nx);
+        Axis ay = new Axis(py, ny);
+        list.add(new Level(ax, ay, problem.getInitialGuess(), problem.getRhs()));
+        while ((ax.n>COARSEST_SIZE || ay.n>COARSEST_SIZE) && (ax.n>=3 || ay.n>=3)) {
+            ax = ax.coarsen(nx);
+            ay = ay.coarsen(ny);
+            list.add(new Level(ax, ay, new float[ax.n*ay.n], new float[ax.n*ay.n]));
+        }
+        levels = list.toArray(new Level[list.size()]);
+    }
+    
+    /**
+     * @return the number of levels, including the finest one
+     */
+    public int getNbLevels() {
+        return levels.length;
+    }
+    
+    /**
+     * @return the norm of the residual of the finest level
+     */
+    public float getResidual() {
+        return (float)Math.sqrt(residual(levels[0]));
+    }
+    
+    /**
+     * Runs cycles until the criterion is met, and stores the solution into
+     * the problem. Each cycle counts as one sweep of the criterion.
+     * @param criterion deciding when to stop
+     */
+    public void solve(StopCriterion criterion) {
+        if (levels[0].u.length==0) {
+            criterion.start(0);
+            criterion.isDone(criterion.getMaxSweeps(), 0);
+            return;
+        }
+        criterion.start(criterion.usesResidual() ? getResidual() : Float.NaN);
+        for (int cycle=0; !criterion.isDone(cycle, criterion.needsResidual(cycle) ? getResidual() : Float.NaN); cycle++) {
+            cycle(0);
+        }
+        problem.store(levels[0].u);
+    }
+    
+    /**
+     * Improves the solution of a level with a V- or W-cycle.
+     * @param l level number
+     */
+    private void cycle(int l) {
+        Level lvl = levels[l];
+        if (l==levels.length-1) {
+            smooth(lvl, COARSEST_SWEEPS);
+            return;
+        }
+        smooth(lvl, PRE_SMOOTHING);
+        residual(lvl);
+        Level coarse = levels[l+1];
+        restrict(lvl, coarse);
+        Arrays.fill(coarse.u, 0);
+        int nbVisits = (wCycle && l+1<levels.length-1) ? 2 : 1;
+        for (int v=0; v<nbVisits; v++) {
+            cycle(l+1);
+        }
+        prolongate(coarse, lvl);
+        smooth(lvl, POST_SMOOTHING);
+    }
+    
+    /**
+     * Computes the residual f - A u of a level into its r array.
+     * @return the squared norm of the residual
+     */
+    private static double residual(final Level lvl) {
+        final double[] rowNorm = new double[lvl.ny];
+        Parallel.forRows(lvl.ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                int nx = lvl.nx;
+                float[] u = lvl.u;
+                for (int j=y0; j<y1; j++) {
+                    double norm = 0;
+                    for (int i=0, p=j*nx; i<nx; i++, p++) {
+                        float res = lvl.f[p] - apply(lvl, u, i, j, p);
+                        lvl.r[p] = res;
+                        norm += (double)res*res;
+                    }
+                    rowNorm[j] = norm;
+                }
+            }
+        });
+        double norm = 0;
+        for (double n : rowNorm) {
+            norm += n;
+        }
+        return norm;
+    }
+    
+    /**
+     * @return the value of the Laplacian of u at point (i,j)
+     */
+    private static float apply(Level lvl, float[] u, int i, int j, int p) {
+        Axis ax = lvl.ax;
+        Axis ay = lvl.ay;
+        float s = -(ax.prev[i]+ax.next[i]+ay.prev[j]+ay.next[j]) * u[p];
+        if (i>0) {
+            s += ax.prev[i]*u[p-1];
+        }
+        if (i<lvl.nx-1) {
+            s += ax.next[i]*u[p+1];
+        }
+        if (j>0) {
+            s += ay.prev[j]*u[p-lvl.nx];
+        }
+        if (j<lvl.ny-1) {
+            s += ay.next[j]*u[p+lvl.nx];
+        }
+        return s;
+    }
+    
+    /**
+     * Red-black Gauss-Seidel sweeps.
+     */
+    private static void smooth(final Level lvl, int nbSweeps) {
+        for (int s=0; s<nbSweeps; s++) {
+            for (int colour=0; colour<2; colour++) {
+                final int c = colour;
+                Parallel.forRows(lvl.ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+                    @Override
+                    public void run(int y0, int y1) {
+                        int nx = lvl.nx;
+                        float[] u = lvl.u;
+                        Axis ax = lvl.ax;
+                        Axis ay = lvl.ay;
+                        for (int j=y0; j<y1; j++) {
+                            for (int i=(j+c)&1, p=j*nx+i; i<nx; i+=2, p+=2) {
+                                float diag = ax.prev[i]+ax.next[i]+ay.prev[j]+ay.next[j];
+                                // the Laplacian without the diagonal term
+                                float s = apply(lvl, u, i, j, p) + diag*u[p];
+                                u[p] = (s - lvl.f[p]) / diag;
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+    
+    /**
+     * Restricts the residual of a level as the weighted mean of the points
+     * interpolated from each coarse point, first along x, then along y.
+     */
+    private static void restrict(final Level fine, final Level coarse) {
+        final float[] tmp = new float[fine.ny*coarse.nx];
+        Parallel.forRows(fine.ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                Axis ax = fine.ax;
+                for (int j=y0; j<y1; j++) {
+                    for (int c=0; c<coarse.nx; c++) {
+                        float sum = 0;
+                        for (int i=ax.first(c); i<=ax.last(c, coarse.nx); i++) {
+                            sum += ax.weight(i, c) * fine.r[j*fine.nx+i];
+                        }
+                        tmp[j*coarse.nx+c] = sum / ax.weightSum[c];
+                    }
+                }
+            }
+        });
+        Parallel.forRows(coarse.ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                Axis ay = fine.ay;
+                int nx = coarse.nx;
+                for (int c=y0; c<y1; c++) {
+                    int row = c*nx;
+                    Arrays.fill(coarse.f, row, row+nx, 0);
+                    for (int j=ay.first(c); j<=ay.last(c, coarse.ny); j++) {
+                        float w = ay.weight(j, c) / ay.weightSum[c];
+                        for (int i=0; i<nx; i++) {
+                            coarse.f[row+i] += w * tmp[j*nx+i];
+                        }
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Adds the interpolation of the coarse correction to a level.
+     */
+    private static void prolongate(final Level coarse, final Level fine) {
+        Parallel.forRows(fine.ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                Axis ax = fine.ax;
+                Axis ay = fine.ay;
+                for (int j=y0; j<y1; j++) {
+                    for (int i=0, p=j*fine.nx; i<fine.nx; i++, p++) {
+                        float top = ax.w0[i]*get(coarse, ax.c0[i], ay.c0[j])
+                                  + ax.w1[i]*get(coarse, ax.c1[i], ay.c0[j]);
+                        float bottom = ax.w0[i]*get(coarse, ax.c0[i], ay.c1[j])
+                                     + ax.w1[i]*get(coarse, ax.c1[i], ay.c1[j]);
+                        fine.u[p] += ay.w0[j]*top + ay.w1[j]*bottom;
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return the correction of a coarse point, 0 on the boundary
+     */
+    private static float get(Level lvl, int i, int j) {
+        if (i<0 || j<0 || i>=lvl.nx || j>=lvl.ny) {
+            return 0;
+        }
+        return lvl.u[j*lvl.nx+i];
+    }
+}
@@ -0,0 +1,153 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Spreads row-wise work over the available cores. The rows of an image
+ * are cut into contiguous bands, one per thread; the calling thread
+ * processes the first band itself. Calls made from a worker thread run
+ * sequentially, so that kernels can be nested without deadlock.
+ * @author Mathias Seuret
+ */
+public class Parallel {
+    
+    /**
+     * Work done on a band of rows.
+     */
+    public interface RowTask {
+        /**
+         * Processes the rows from y0 (inclusive) to y1 (exclusive).
+         * @param y0 first row
+         * @param y1 row after the last one
+         */
+        void run(int y0, int y1);
+    }
+    
+    private static int nbThreads = Runtime.getRuntime().availableProcessors();
+    
+    private static ExecutorService executor = null;
+    
+    private Parallel() {
+        // only static methods
+    }
+    
+    /**
+     * Sets the number of threads used by the kernels; 1 disables the
+     * parallel processing.
+     * @param n number of threads
+     */
+    public static synchronized void setThreads(int n) {
+        if (n<1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        if (executor!=null) {
+            executor.shutdown();
+            executor = null;
+        }
+        nbThreads = n;
+    }
+    
+    /**
+     * @return the number of threads used by the kernels
+     */
+    public static synchronized int getThreads() {
+        return nbThreads;
+    }
+    
+    private static synchronized ExecutorService getExecutor() {
+        if (executor==null) {
+            executor = Executors.newFixedThreadPool(nbThreads-1, new ThreadFactory() {
+                private int count = 0;
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Worker(r, "divadid-kernel-"+(count++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+    
+    /**
+     * Runs a task on all rows of an image.
+     * @param height number of rows
+     * @param minRows minimum number of rows per band, to avoid splitting
+     *                small images for nothing
+     * @param task to run on each band
+     */
+    public static void forRows(int height, int minRows, final RowTask task) {
+        int n = Math.min(getThreads(), height/Math.max(1, minRows));
+        if (n<=1 || Thread.currentThread() instanceof Worker) {
+            task.run(0, height);
+            return;
+        }
+        ExecutorService ex = getExecutor();
+        List<Future<?>> bands = new ArrayList<>(n-1);
+        for (int b=1; b<n; b++) {
+            final int y0 = (int)((long)height*b/n);
+            final int y1 = (int)((long)height*(b+1)/n);
+            bands.add(ex.submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(y0, y1);
+                }
+            }));
+        }
+        task.run(0, (int)((long)height/n));
+        for (Future<?> f : bands) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a band", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+    
+    /**
+     * Threads of the pool, recognized to avoid nested submissions.
+     */
+    private static class Worker extends Thread {
+        Worker(Runnable r, String name) {
+            super(r, name);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+/**
+ * This class stores the layers of an image. The Image class only manages
+ * the coordinates and color spaces, and delegates the storage of the values
+ * to an instance of this class, so that images can be kept on the heap
+ * with full or reduced precision, in a memory-mapped file, or decoded
+ * tile by tile.
+ * @author Mathias Seuret
+ */
+public abstract class PixelStorage {
+    
+    /**
+     * Different ways of storing the values.
+     */
+    public enum Kind {
+        HEAP,
+        MAPPED,
+        TILED,
+        FLOAT16,
+        UINT8
+    }
+    
+    /**
+     * Size, in bytes, above which new images are stored in memory-mapped
+     * files instead of on the heap.
+     */
+    private static long mappedThreshold = Long.MAX_VALUE;
+    
+    protected final int width;
+    protected final int height;
+    protected final int depth;
+    
+    protected PixelStorage(int width, int height, int depth) {
+        this.width  = width;
+        this.height = height;
+        this.depth  = depth;
+    }
+    
+    /**
+     * Creates a storage of the given kind.
+     * @param kind of storage
+     * @param width of the image
+     * @param height of the image
+     * @param depth number of layers
+     * @return a new storage, with all values set to 0
+     */
+    public static PixelStorage create(Kind kind, int width, int height, int depth) {
+        switch (kind) {
+            case MAPPED:
+                return new MappedStorage(width, height, depth);
+            case FLOAT16:
+                return new HalfStorage(width, height, depth);
+            case UINT8:
+                return new ByteStorage(width, height, depth);
+            case TILED:
+                return new TiledStorage(width, height, depth,
+                                        TiledStorage.DEFAULT_TILE_SIZE,
+                                        TiledStorage.DEFAULT_CACHE_SIZE);
+            default:
+                return new HeapStorage(width, height, depth);
+        }
+    }
+    
+    /**
+     * Creates a storage, using a memory-mapped file if it is larger than
+     * the mapped threshold.
+     * @param width of the image
+     * @param height of the image
+     * @param depth number of layers
+     * @return a new storage, with all values set to 0
+     */
+    public static PixelStorage create(int width, int height, int depth) {
+        if (4L*width*height*depth > mappedThreshold) {
+            return create(Kind.MAPPED, width, height, depth);
+        }
+        return create(Kind.HEAP, width, height, depth);
+    }
+    
+    /**
+     * Parses the name of a kind of storage, as used in the scripts.
+     * @param name of the kind
+     * @return the kind
+     */
+    public static Kind parseKind(String name) {
+        for (Kind k : Kind.values()) {
+            if (k.name().equalsIgnoreCase(name)) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException(
+                "Unknown storage "+name+"; use heap, mapped, tiled, float16 or uint8"
+        );
+    }
+    
+    /**
+     * Parses the precision of an image, as used in the scripts.
+     * @param name either float32, float16 or uint8
+     * @return the kind of storage, or null for the default float32 storage
+     */
+    public static Kind parsePrecision(String name) {
+        if (name.equalsIgnoreCase("float32")) {
+            return null;
+        }
+        if (name.equalsIgnoreCase("float16")) {
+            return Kind.FLOAT16;
+        }
+        if (name.equalsIgnoreCase("uint8")) {
+            return Kind.UINT8;
+        }
+        throw new IllegalArgumentException(
+                "Unknown precision "+name+"; use float32, float16 or uint8"
+        );
+    }
+    
+    /**
+     * Sets the size above which images are stored off-heap.
+     * @param bytes size of the layers of an image, in bytes
+     */
+    public static void setMappedThreshold(long bytes) {
+        mappedThreshold = bytes;
+    }
+    
+    public static long getMappedThreshold() {
+        return mappedThreshold;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public int getDepth() {
+        return depth;
+    }
+    
+    /**
+     * @return the kind of this storage
+     */
+    public abstract Kind getKind();
+    
+    /**
+     * Returns a value. No bound check is done.
+     * @param layer color channel
+     * @param x coordinate
+     * @param y coordinate
+     * @return the value
+     */
+    public abstract float get(int layer, int x, int y);
+    
+    /**
+     * Sets a value. No bound check is done.
+     * @param layer color channel
+     * @param x coordinate
+     * @param y coordinate
+     * @param value to assign
+     */
+    public abstract void set(int layer, int x, int y, float value);
+    
+    /**
+     * Copies a row of a layer into an array.
+     * @param layer color channel
+     * @param y row number
+     * @param dst destination array
+     * @param off position of the first value in dst
+     */
+    public void getRow(int layer, int y, float[] dst, int off) {
+        for (int x=0; x<width; x++) {
+            dst[off+x] = get(layer, x, y);
+        }
+    }
+    
+    /**
+     * Copies an array into a row of a layer.
+     * @param layer color channel
+     * @param y row number
+     * @param src source array
+     * @param off position of the first value in src
+     */
+    public void setRow(int layer, int y, float[] src, int off) {
+        for (int x=0; x<width; x++) {
+            set(layer, x, y, src[off+x]);
+        }
+    }
+    
+    /**
+     * Frees the resources used by this storage. It must not be used
+     * afterwards.
+     */
+    public void release() {
+        // nothing to do by default
+    }
+}
@@ -0,0 +1,168 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of float arrays, used for the planes of images and gradient maps.
+ * Scripts create and drop many temporary images of the same size; instead
+ * of letting the garbage collector reclaim them, their arrays are given
+ * back to this pool and reused by the next image of the same size.
+ * The pool keeps at most a given number of bytes of unused arrays.
+ * @author Mathias Seuret
+ */
+public class PlanePool {
+    
+    private static final Map<Integer, ArrayDeque<float[]>> free = new HashMap<>();
+    
+    /**
+     * Maximum number of bytes kept in unused arrays.
+     */
+    private static long capacity = Runtime.getRuntime().maxMemory() / 4;
+    
+    private static long inUse     = 0;
+    private static long pooled    = 0;
+    private static long highWater = 0;
+    private static long reused    = 0;
+    private static long allocated = 0;
+    
+    private PlanePool() {
+        // only static methods
+    }
+    
+    /**
+     * Returns an array filled with zeros.
+     * @param length of the array
+     * @return an array from the pool, or a new one
+     */
+    public static float[] borrow(int length) {
+        float[] a = take(length);
+        if (a==null) {
+            return new float[length];
+        }
+        Arrays.fill(a, 0.0f);
+        return a;
+    }
+    
+    /**
+     * Returns an array whose content is undefined. Use it only if all
+     * values are written before being read.
+     * @param length of the array
+     * @return an array from the pool, or a new one
+     */
+    public static float[] borrowUninitialized(int length) {
+        float[] a = take(length);
+        return (a==null) ? new float[length] : a;
+    }
+    
+    private static synchronized float[] take(int length) {
+        inUse += 4L*length;
+        ArrayDeque<float[]> q = free.get(length);
+        float[] a = (q==null) ? null : q.poll();
+        if (a==null) {
+            allocated++;
+            highWater = Math.max(highWater, inUse+pooled);
+        } else {
+            reused++;
+            pooled -= 4L*length;
+        }
+        return a;
+    }
+    
+    /**
+     * Gives an array back to the pool. It must not be used anymore by the
+     * caller.
+     * @param a array obtained with borrow, or null
+     */
+    public static synchronized void giveBack(float[] a) {
+        if (a==null) {
+            return;
+        }
+        inUse -= 4L*a.length;
+        if (pooled+4L*a.length > capacity) {
+            // left to the garbage collector
+            return;
+        }
+        ArrayDeque<float[]> q = free.get(a.length);
+        if (q==null) {
+            q = new ArrayDeque<>();
+            free.put(a.length, q);
+        }
+        q.push(a);
+        pooled += 4L*a.length;
+    }
+    
+    /**
+     * Sets the maximum number of bytes of unused arrays kept by the pool.
+     * @param bytes capacity
+     */
+    public static synchronized void setCapacity(long bytes) {
+        capacity = bytes;
+        if (pooled>capacity) {
+            clear();
+        }
+    }
+    
+    /**
+     * Drops all unused arrays.
+     */
+    public static synchronized void clear() {
+        free.clear();
+        pooled = 0;
+    }
+    
+    /**
+     * @return the number of bytes in arrays currently borrowed
+     */
+    public static synchronized long getInUse() {
+        return inUse;
+    }
+    
+    /**
+     * @return the number of bytes in unused arrays kept by the pool
+     */
+    public static synchronized long getPooled() {
+        return pooled;
+    }
+    
+    /**
+     * @return the largest number of bytes held at once in borrowed and
+     * unused arrays
+     */
+    public static synchronized long getHighWaterMark() {
+        return highWater;
+    }
+    
+    /**
+     * @return a summary of the pool usage
+     */
+    public static synchronized String getStatistics() {
+        return "high-water mark "+(highWater>>20)+"MB, "
+                +(inUse>>20)+"MB in use, "+(pooled>>20)+"MB pooled, "
+                +allocated+" allocations, "+reused+" reuses";
+    }
+}
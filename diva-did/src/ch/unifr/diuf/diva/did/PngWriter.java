@@ -0,0 +1,360 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit RGB PNG files using all cores. The scanlines are cut into
+ * chunks which are filtered and deflated independently by the threads of
+ * Parallel; each chunk is flushed to a byte boundary, so that the chunks
+ * can be concatenated into a single zlib stream, and gets the end of the
+ * previous chunk as preset dictionary, so that the compression ratio stays
+ * close to the one of a sequential encoder. The filter of each row is the
+ * one giving the smallest sum of absolute values, as usual. Only a few
+ * chunks are in memory at a time, never a full copy of the image.
+ * @author Mathias Seuret
+ */
+public class PngWriter {
+    
+    /**
+     * Default deflate level, the same as the one of ImageIO.
+     */
+    public static final int DEFAULT_LEVEL = 4;
+    
+    private static final byte[] SIGNATURE = {
+        (byte)137, 80, 78, 71, 13, 10, 26, 10
+    };
+    
+    /**
+     * Approximate number of uncompressed bytes per chunk.
+     */
+    private static final int CHUNK_BYTES = 1 << 18;
+    
+    /**
+     * Size of the deflate window, and thus of the useful dictionary.
+     */
+    private static final int WINDOW = 1 << 15;
+    
+    private final int level;
+    
+    /**
+     * Creates a writer with the default deflate level.
+     */
+    public PngWriter() {
+        this(DEFAULT_LEVEL);
+    }
+    
+    /**
+     * Creates a writer.
+     * @param level deflate level, from 0 (fastest) to 9 (smallest)
+     */
+    public PngWriter(int level) {
+        if (level<0 || level>9) {
+            throw new IllegalArgumentException("The PNG compression level must be between 0 and 9");
+        }
+        this.level = level;
+    }
+    
+    /**
+     * Writes an image. Graylevel images are written as RGB, as by
+     * Image.write().
+     * @param img image to write
+     * @param file destination
+     * @throws IOException if the file cannot be written
+     */
+    public void write(final Image img, File file) throws IOException {
+        final int width  = img.getWidth();
+        final int height = img.getHeight();
+        int rowBytes     = 3*width + 1;
+        final int rowsPerChunk = Math.max(1, CHUNK_BYTES / rowBytes);
+        final int nbChunks     = (height + rowsPerChunk - 1) / rowsPerChunk;
+        
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        try {
+            out.write(SIGNATURE);
+            ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+            DataOutputStream h = new DataOutputStream(header);
+            h.writeInt(width);
+            h.writeInt(height);
+            h.writeByte(8);  // bits per sample
+            h.writeByte(2);  // RGB
+            h.writeByte(0);  // deflate
+            h.writeByte(0);  // adaptive filtering
+            h.writeByte(0);  // no interlace
+            writeChunk(out, "IHDR", header.toByteArray(), null);
+            
+            // chunks are encoded by batches, to bound the memory used
+            int batchSize = 2*Parallel.getThreads();
+            final Chunk[] batch = new Chunk[batchSize];
+            long adler = 1;
+            for (int c0=0; c0<nbChunks; c0+=batchSize) {
+                final int first = c0;
+                final int n = Math.min(batchSize, nbChunks-c0);
+                Parallel.forRows(n, 1, new Parallel.RowTask() {
+                    @Override
+                    public void run(int i0, int i1) {
+                        for (int i=i0; i<i1; i++) {
+                            int c  = first+i;
+                            int y0 = c*rowsPerChunk;
+                            int y1 = Math.min(height, y0+rowsPerChunk);
+                            batch[i] = encode(img, y0, y1, y1==height);
+                        }
+                    }
+                });
+                for (int i=0; i<n; i++) {
+                    Chunk c = batch[i];
+                    adler = combineAdler(adler, c.adler, c.length);
+                    byte[] prefix = null;
+                    if (first+i==0) {
+                        prefix = zlibHeader();
+                    }
+                    if (first+i==nbChunks-1) {
+                        byte[] data = new byte[c.data.length+4];
+                        System.arraycopy(c.data, 0, data, 0, c.data.length);
+                        data[data.length-4] = (byte)(adler >>> 24);
+                        data[data.length-3] = (byte)(adler >>> 16);
+                        data[data.length-2] = (byte)(adler >>> 8);
+                        data[data.length-1] = (byte)adler;
+                        c.data = data;
+                    }
+                    writeChunk(out, "IDAT", prefix, c.data);
+                    batch[i] = null;
+                }
+            }
+            writeChunk(out, "IEND", null, null);
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Result of the compression of a group of rows.
+     */
+    private static class Chunk {
+        byte[] data;
+        long adler;
+        long length;
+    }
+    
+    /**
+     * Filters and compresses rows y0 to y1 (exclusive). The last rows of
+     * the previous chunk are filtered again, to serve as dictionary.
+     */
+    private Chunk encode(Image img, int y0, int y1, boolean last) {
+        int rowBytes = 3*img.getWidth();
+        int stride   = rowBytes+1;
+        int dictRows = Math.min(y0, (WINDOW+stride-1)/stride);
+        int start    = y0-dictRows;
+        
+        byte[] filtered = new byte[(y1-start)*stride];
+        byte[] prev     = new byte[rowBytes];
+        byte[] cur      = new byte[rowBytes];
+        byte[][] candidates = new byte[5][rowBytes];
+        float[][] row   = new float[img.getDepth()][img.getWidth()];
+        if (start>0) {
+            img.getRGBRow(start-1, row, prev, 0);
+        }
+        for (int y=start; y<y1; y++) {
+            img.getRGBRow(y, row, cur, 0);
+            filterRow(prev, cur, candidates, filtered, (y-start)*stride);
+            byte[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        
+        int off = dictRows*stride;
+        int len = filtered.length-off;
+        Deflater deflater = new Deflater(level, true);
+        ByteArrayOutputStream res = new ByteArrayOutputStream(len/2+64);
+        byte[] buf = new byte[1 << 16];
+        try {
+            if (off>0) {
+                int dl = Math.min(WINDOW, off);
+                deflater.setDictionary(filtered, off-dl, dl);
+            }
+            deflater.setInput(filtered, off, len);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buf);
+                    res.write(buf, 0, n);
+                }
+            } else {
+                // ends on a byte boundary, without marking the last block
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    res.write(buf, 0, n);
+                } while (n==buf.length);
+            }
+        } finally {
+            deflater.end();
+        }
+        
+        Adler32 a = new Adler32();
+        a.update(filtered, off, len);
+        Chunk c  = new Chunk();
+        c.data   = res.toByteArray();
+        c.adler  = a.getValue();
+        c.length = len;
+        return c;
+    }
+    
+    /**
+     * Applies the five PNG filters to a row and keeps the one having the
+     * smallest sum of absolute values.
+     */
+    private static void filterRow(byte[] prev, byte[] cur, byte[][] cand, byte[] dst, int off) {
+        final int bpp = 3;
+        int n = cur.length;
+        byte[] sub = cand[1];
+        byte[] up  = cand[2];
+        byte[] avg = cand[3];
+        byte[] pth = cand[4];
+        long sNone = 0;
+        long sSub  = 0;
+        long sUp   = 0;
+        long sAvg  = 0;
+        long sPth  = 0;
+        for (int i=0; i<n; i++) {
+            int x = cur[i] & 0xFF;
+            int a = (i>=bpp) ? cur[i-bpp] & 0xFF : 0;
+            int b = prev[i] & 0xFF;
+            int c = (i>=bpp) ? prev[i-bpp] & 0xFF : 0;
+            
+            int p  = a+b-c;
+            int pa = Math.abs(p-a);
+            int pb = Math.abs(p-b);
+            int pc = Math.abs(p-c);
+            int pred = (pa<=pb && pa<=pc) ? a : (pb<=pc) ? b : c;
+            
+            sub[i] = (byte)(x-a);
+            up[i]  = (byte)(x-b);
+            avg[i] = (byte)(x-((a+b)>>1));
+            pth[i] = (byte)(x-pred);
+            sNone += Math.abs(cur[i]);
+            sSub  += Math.abs(sub[i]);
+            sUp   += Math.abs(up[i]);
+            sAvg  += Math.abs(avg[i]);
+            sPth  += Math.abs(pth[i]);
+        }
+        int best = 0;
+        long min = sNone;
+        if (sSub<min) {
+            best = 1;
+            min = sSub;
+        }
+        if (sUp<min) {
+            best = 2;
+            min = sUp;
+        }
+        if (sAvg<min) {
+            best = 3;
+            min = sAvg;
+        }
+        if (sPth<min) {
+            best = 4;
+        }
+        dst[off] = (byte)best;
+        System.arraycopy((best==0) ? cur : cand[best], 0, dst, off+1, n);
+    }
+    
+    /**
+     * @return the two bytes starting the zlib stream
+     */
+    private byte[] zlibHeader() {
+        int cmf = 0x78; // deflate, 32K window
+        int flevel = (level<2) ? 0 : (level<6) ? 1 : (level==6) ? 2 : 3;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[] {(byte)cmf, (byte)flg};
+    }
+    
+    /**
+     * Computes the Adler-32 checksum of the concatenation of two blocks of
+     * data, knowing their checksums, as adler32_combine() of zlib.
+     * @param adler1 checksum of the first block
+     * @param adler2 checksum of the second block
+     * @param len2 length of the second block
+     * @return the checksum of both blocks
+     */
+    static long combineAdler(long adler1, long adler2, long len2) {
+        final long base = 65521;
+        long rem  = len2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1>=base) {
+            sum1 -= base;
+        }
+        if (sum1>=base) {
+            sum1 -= base;
+        }
+        if (sum2>=(base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2>=base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+    
+    /**
+     * Writes a PNG chunk whose data is the concatenation of two arrays.
+     */
+    private static void writeChunk(OutputStream out, String type, byte[] a, byte[] b) throws IOException {
+        int len = ((a==null) ? 0 : a.length) + ((b==null) ? 0 : b.length);
+        byte[] t = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        writeInt(out, len);
+        out.write(t);
+        if (a!=null) {
+            out.write(a);
+            crc.update(a);
+        }
+        if (b!=null) {
+            out.write(b);
+            crc.update(b);
+        }
+        writeInt(out, (int)crc.getValue());
+    }
+    
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+}
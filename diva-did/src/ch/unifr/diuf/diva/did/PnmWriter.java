@@ -0,0 +1,78 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes binary PPM (P6) files, 8 bits per sample. The rows are quantized
+ * by bands, in parallel, and each band is written before the next one is
+ * computed, so that only a band is in memory besides the image.
+ * @author Mathias Seuret
+ */
+public class PnmWriter {
+    
+    /**
+     * Approximate number of bytes per band.
+     */
+    private static final int BAND_BYTES = 1 << 20;
+    
+    /**
+     * Writes an image. Graylevel images are written as RGB, as by
+     * Image.write().
+     * @param img image to write
+     * @param file destination
+     * @throws IOException if the file cannot be written
+     */
+    public void write(final Image img, File file) throws IOException {
+        final int rowBytes = 3*img.getWidth();
+        int height         = img.getHeight();
+        int bandRows       = Math.max(1, BAND_BYTES / Math.max(1, rowBytes));
+        final byte[] band  = new byte[Math.min(bandRows, height)*rowBytes];
+        
+        OutputStream out = new FileOutputStream(file);
+        try {
+            String header = "P6\n"+img.getWidth()+" "+img.getHeight()+"\n255\n";
+            out.write(header.getBytes("US-ASCII"));
+            for (int y0=0; y0<height; y0+=bandRows) {
+                final int first = y0;
+                int n = Math.min(bandRows, height-y0);
+                Parallel.forRows(n, 1, new Parallel.RowTask() {
+                    @Override
+                    public void run(int i0, int i1) {
+                        float[][] row = new float[img.getDepth()][img.getWidth()];
+                        for (int i=i0; i<i1; i++) {
+                            img.getRGBRow(first+i, row, band, i*rowBytes);
+                        }
+                    }
+                });
+                out.write(band, 0, n*rowBytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+/**
+ * Poisson equation whose solution are the values best matching the
+ * gradients of a GradientMap: the Laplacian of the values must be the
+ * divergence of the gradients. As with the sweep reconstructions, the
+ * pixels closer than two pixels to the border keep their value; the
+ * unknowns are the other ones, stored row by row, and the border values
+ * are moved to the right-hand side so that the unknowns see zeros around
+ * them.
+ * @author Mathias Seuret
+ */
+public class PoissonProblem {
+    
+    /**
+     * Width of the fixed border.
+     */
+    public static final int BORDER = 2;
+    
+    private final GradientMap map;
+    private final int nx;
+    private final int ny;
+    private final float[] rhs;
+    
+    /**
+     * Builds the equation of a map.
+     * @param map gradients and border values
+     */
+    public PoissonProblem(GradientMap map) {
+        this.map = map;
+        nx = Math.max(0, map.width-2*BORDER);
+        ny = Math.max(0, map.height-2*BORDER);
+        rhs = new float[nx*ny];
+        final int w = map.width;
+        Parallel.forRows(ny, 16, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                float[] gx = PoissonProblem.this.map.gx;
+                float[] gy = PoissonProblem.this.map.gy;
+                float[] val = PoissonProblem.this.map.val;
+                for (int j=y0; j<y1; j++) {
+                    for (int i=0; i<nx; i++) {
+                        int p = (j+BORDER)*w + i+BORDER;
+                        float b = gx[p] - gx[p-1] + gy[p] - gy[p-w];
+                        // known neighbours go to the right-hand side
+                        if (i==0) {
+                            b -= val[p-1];
+                        }
+                        if (i==nx-1) {
+                            b -= val[p+1];
+                        }
+                        if (j==0) {
+                            b -= val[p-w];
+                        }
+                        if (j==ny-1) {
+                            b -= val[p+w];
+                        }
+                        rhs[j*nx+i] = b;
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return the number of unknowns per row
+     */
+    public int getWidth() {
+        return nx;
+    }
+    
+    /**
+     * @return the number of rows of unknowns
+     */
+    public int getHeight() {
+        return ny;
+    }
+    
+    /**
+     * @return the right-hand side, row by row
+     */
+    public float[] getRhs() {
+        return rhs;
+    }
+    
+    /**
+     * @return the current values of the unknowns, used as first guess
+     */
+    public float[] getInitialGuess() {
+        float[] u = new float[nx*ny];
+        for (int j=0; j<ny; j++) {
+            System.arraycopy(map.val, (j+BORDER)*map.width+BORDER, u, j*nx, nx);
+        }
+        return u;
+    }
+    
+    /**
+     * Writes a solution into the values of the map.
+     * @param u values of the unknowns, row by row
+     */
+    public void store(float[] u) {
+        for (int j=0; j<ny; j++) {
+            System.arraycopy(u, j*nx, map.val, (j+BORDER)*map.width+BORDER, nx);
+        }
+    }
+    
+    /**
+     * Computes r = f - A u, where A is the five-point Laplacian divided by
+     * h*h, with zeros around the grid.
+     * @param u values, row by row
+     * @param f right-hand side
+     * @param r receives the residual; can be null
+     * @param nx width of the grid
+     * @param ny height of the grid
+     * @param h2 squared grid spacing
+     * @return the squared norm of the residual
+     */
+    public static double residual(final float[] u, final float[] f, final float[] r,
+                                  final int nx, final int ny, final float h2) {
+        final double[] rowNorm = new double[ny];
+        Parallel.forRows(ny, 16, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int j=y0; j<y1; j++) {
+                    double norm = 0;
+                    for (int i=0, p=j*nx; i<nx; i++, p++) {
+                        float s = -4*u[p]
+                                + ((i>0)    ? u[p-1]  : 0)
+                                + ((i<nx-1) ? u[p+1]  : 0)
+                                + ((j>0)    ? u[p-nx] : 0)
+                                + ((j<ny-1) ? u[p+nx] : 0);
+                        float res = f[p] - s/h2;
+                        if (r!=null) {
+                            r[p] = res;
+                        }
+                        norm += (double)res*res;
+                    }
+                    rowNorm[j] = norm;
+                }
+            }
+        });
+        double norm = 0;
+        for (double n : rowNorm) {
+            norm += n;
+        }
+        return norm;
+    }
+}
@@ -0,0 +1,249 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes the images loaded by a script before the script reaches them.
+ * The files are decoded in the order in which they are loaded, by a small
+ * pool of threads, as long as the decoded images fit in a budget of
+ * bytes; the budget used by an image is freed when the script takes it.
+ * When the script needs a file whose decoding has not started yet, it
+ * loads it itself and the prefetcher skips it.
+ * @author Mathias Seuret
+ */
+public class Prefetcher {
+    
+    /**
+     * A file to decode.
+     */
+    private static class Entry {
+        final String key;
+        final String fname;
+        final int permits;
+        Future<Image> future = null;
+        boolean claimed = false;
+        
+        Entry(String key, String fname, int permits) {
+            this.key = key;
+            this.fname = fname;
+            this.permits = permits;
+        }
+    }
+    
+    /**
+     * The budget is counted in kilobytes, so that it fits in a semaphore.
+     */
+    private final Semaphore budget;
+    private final int budgetKB;
+    private final List<Entry> entries = new ArrayList<>();
+    private final ExecutorService decoders;
+    private Thread dispatcher = null;
+    
+    /**
+     * Creates a prefetcher.
+     * @param threads number of decoding threads
+     * @param budgetBytes maximum number of bytes of decoded images not
+     *                    taken by the script yet
+     */
+    public Prefetcher(int threads, long budgetBytes) {
+        budgetKB = (int)Math.min(Integer.MAX_VALUE, budgetBytes >> 10);
+        budget   = new Semaphore(budgetKB);
+        decoders = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "divadid-prefetch-"+(count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * Adds a file to decode, if its size can be read and if it fits in
+     * the budget at all. Must be called before start().
+     * @param fname file name
+     */
+    public void add(String fname) {
+        File f = new File(fname);
+        if (!f.isFile() || FloatImageIO.isFloatFile(fname)) {
+            // float files are mapped, there is nothing to decode
+            return;
+        }
+        long bytes = estimateBytes(f);
+        if (bytes<0 || (bytes >> 10) >= budgetKB) {
+            return;
+        }
+        entries.add(new Entry(key(fname), fname, (int)(bytes >> 10) + 1));
+    }
+    
+    /**
+     * Starts decoding the files in background.
+     */
+    public void start() {
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "divadid-prefetch-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+    
+    private void dispatch() {
+        try {
+            for (final Entry e : entries) {
+                synchronized (this) {
+                    if (e.claimed) {
+                        continue;
+                    }
+                }
+                budget.acquire(e.permits);
+                synchronized (this) {
+                    if (e.claimed) {
+                        budget.release(e.permits);
+                        continue;
+                    }
+                    e.future = decoders.submit(new Callable<Image>() {
+                        @Override
+                        public Image call() throws IOException {
+                            return new Image(e.fname);
+                        }
+                    });
+                }
+            }
+        } catch (InterruptedException ex) {
+            // stopped by close()
+        }
+    }
+    
+    /**
+     * Returns the image decoded from a file, if its decoding has been
+     * started; the image then belongs to the caller.
+     * @param fname file name
+     * @return the image, or null if the caller has to load the file
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Image take(String fname) throws InterruptedException {
+        String key = key(fname);
+        Entry entry = null;
+        synchronized (this) {
+            for (Entry e : entries) {
+                if (!e.claimed && e.key.equals(key)) {
+                    entry = e;
+                    e.claimed = true;
+                    break;
+                }
+            }
+        }
+        if (entry==null || entry.future==null) {
+            return null;
+        }
+        try {
+            return entry.future.get();
+        } catch (ExecutionException ex) {
+            // the caller loads the file again and reports the error
+            return null;
+        } finally {
+            budget.release(entry.permits);
+        }
+    }
+    
+    /**
+     * Stops decoding and releases the images which were not taken.
+     */
+    public void close() {
+        if (dispatcher!=null) {
+            dispatcher.interrupt();
+            try {
+                dispatcher.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (Iterator<Entry> it=entries.iterator(); it.hasNext(); ) {
+                Entry e = it.next();
+                if (!e.claimed && e.future!=null) {
+                    try {
+                        e.future.get().release();
+                    } catch (InterruptedException | ExecutionException ex) {
+                        // nothing to release
+                    }
+                }
+                it.remove();
+            }
+        }
+        decoders.shutdown();
+    }
+    
+    /**
+     * Reads the size of an image from its header.
+     * @return an upper bound of the bytes used by the decoded image, or -1
+     */
+    private static long estimateBytes(File f) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(f)) {
+            if (in==null) {
+                return -1;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return -1;
+            }
+            ImageReader r = readers.next();
+            try {
+                r.setInput(in, true, true);
+                return 4L * 3 * r.getWidth(0) * r.getHeight(0);
+            } finally {
+                r.dispose();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+    
+    private static String key(String fname) {
+        try {
+            return new File(fname).getCanonicalPath();
+        } catch (IOException e) {
+            return new File(fname).getAbsolutePath();
+        }
+    }
+}
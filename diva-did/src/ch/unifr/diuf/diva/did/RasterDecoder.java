@@ -0,0 +1,170 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Converts the rows of a decoded image into planes of floats. The common
+ * raster layouts (TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR, TYPE_INT_RGB,
+ * TYPE_INT_ARGB and TYPE_BYTE_GRAY) are read directly from their data
+ * buffer; other layouts go through getRGB(), one row at a time. In all
+ * cases the values are the same as the ones given by getRGB().
+ * @author Mathias Seuret
+ */
+public class RasterDecoder {
+    
+    private static final float[] LEVEL = new float[256];
+    static {
+        for (int i=0; i<256; i++) {
+            LEVEL[i] = i / 255.0f;
+        }
+    }
+    
+    private final BufferedImage bi;
+    private final int width;
+    
+    private byte[] bytes = null;
+    private int[]  ints  = null;
+    private int base;
+    private int scanline;
+    private int pixelStride;
+    private int[] bandOffset;
+    
+    /**
+     * Levels of the gray values, as getRGB() converts them from the gray
+     * color space.
+     */
+    private float[] grayLut = null;
+    
+    /**
+     * Prepares the decoding of an image.
+     * @param bi decoded image
+     */
+    public RasterDecoder(BufferedImage bi) {
+        this.bi = bi;
+        this.width = bi.getWidth();
+        
+        Raster r = bi.getRaster();
+        int tx = r.getSampleModelTranslateX();
+        int ty = r.getSampleModelTranslateY();
+        switch (bi.getType()) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                ComponentSampleModel sm = (ComponentSampleModel)r.getSampleModel();
+                DataBufferByte db = (DataBufferByte)r.getDataBuffer();
+                bytes       = db.getData();
+                scanline    = sm.getScanlineStride();
+                pixelStride = sm.getPixelStride();
+                bandOffset  = sm.getBandOffsets();
+                base        = db.getOffset() - ty*scanline - tx*pixelStride;
+                break;
+            }
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)r.getSampleModel();
+                DataBufferInt db = (DataBufferInt)r.getDataBuffer();
+                ints     = db.getData();
+                scanline = sm.getScanlineStride();
+                base     = db.getOffset() - ty*scanline - tx;
+                break;
+            }
+        }
+        if (bi.getType()==BufferedImage.TYPE_BYTE_GRAY) {
+            ColorModel cm = bi.getColorModel();
+            grayLut = new float[256];
+            byte[] sample = new byte[1];
+            for (int i=0; i<256; i++) {
+                sample[0] = (byte)i;
+                grayLut[i] = LEVEL[cm.getRGB(sample) & 0xFF];
+            }
+        }
+    }
+    
+    /**
+     * @return true if the image is decoded as a single graylevel layer
+     */
+    public boolean isGray() {
+        return bi.getType()==BufferedImage.TYPE_BYTE_GRAY;
+    }
+    
+    /**
+     * @return the number of layers filled by decodeRow()
+     */
+    public int getDepth() {
+        return isGray() ? 1 : 3;
+    }
+    
+    /**
+     * Converts a row of the image. This method can be called concurrently
+     * for different rows.
+     * @param y row number
+     * @param dst one array per layer, see getDepth()
+     * @param off index of the first pixel in the arrays
+     */
+    public void decodeRow(int y, float[][] dst, int off) {
+        if (grayLut!=null) {
+            float[] g = dst[0];
+            int p = base + y*scanline + bandOffset[0];
+            for (int x=0; x<width; x++, p+=pixelStride) {
+                g[off+x] = grayLut[bytes[p] & 0xFF];
+            }
+        } else if (bytes!=null) {
+            float[] r = dst[0];
+            float[] g = dst[1];
+            float[] b = dst[2];
+            int p  = base + y*scanline;
+            int or = bandOffset[0];
+            int og = bandOffset[1];
+            int ob = bandOffset[2];
+            for (int x=0; x<width; x++, p+=pixelStride) {
+                r[off+x] = LEVEL[bytes[p+or] & 0xFF];
+                g[off+x] = LEVEL[bytes[p+og] & 0xFF];
+                b[off+x] = LEVEL[bytes[p+ob] & 0xFF];
+            }
+        } else {
+            int[] rgb = ints;
+            int p = base + y*scanline;
+            if (rgb==null) {
+                rgb = bi.getRGB(0, y, width, 1, null, 0, width);
+                p = 0;
+            }
+            float[] r = dst[0];
+            float[] g = dst[1];
+            float[] b = dst[2];
+            for (int x=0; x<width; x++, p++) {
+                int c = rgb[p];
+                r[off+x] = LEVEL[(c >> 16) & 0xFF];
+                g[off+x] = LEVEL[(c >> 8) & 0xFF];
+                b[off+x] = LEVEL[c & 0xFF];
+            }
+        }
+    }
+}
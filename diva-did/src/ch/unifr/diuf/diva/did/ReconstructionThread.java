@@ -23,7 +23,6 @@
 package ch.unifr.diuf.diva.did;
 
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -35,71 +34,70 @@ public class ReconstructionThread extends Thread {
     private GradientMap gradientMap;
     private int id;
     private int nbCPU;
-    Semaphore lock;
     AtomicBoolean isDone;
-    Semaphore locLock;
+    /**
+     * Released by the main thread for each step, and by this thread when
+     * the step is done.
+     */
+    private final Semaphore startLock = new Semaphore(0);
+    private final Semaphore readyLock = new Semaphore(0);
     
-    public ReconstructionThread(GradientMap map, int id, int nbCPU, Semaphore lock, AtomicBoolean isDone) {
+    public ReconstructionThread(GradientMap map, int id, int nbCPU, AtomicBoolean isDone) {
         gradientMap = map;
         this.id     = id;
-        this.lock   = lock;
         this.isDone = isDone;
-        locLock     = new Semaphore(0);
         this.nbCPU  = nbCPU;
     }
     @Override
     public void run() {
         System.out.println("Thread "+id+":"+nbCPU+" started"); System.out.flush();
         for (int step=0; ; step++) {
-            // Asks the permission to do the next step
+            // Waits for the permission to do the next step
             try {
-                //lock.acquire();
-                lock.tryAcquire(500, TimeUnit.MILLISECONDS);
+                startLock.acquire();
             } catch (InterruptedException ex) {
-                //Logger.getLogger(ReconstructionThread.class.getName()).log(Level.SEVERE, null, ex);
                 System.out.println("Semaphore acquisition failed");
+                return;
             }
             if (isDone.get()==true) {
                 System.out.println("Job "+id+" done");
                 return;
             }
             
+            // each thread works on a contiguous band of rows or columns
+            int nbRows = gradientMap.height-4;
+            int nbCols = gradientMap.width-4;
             switch (step%4) {
                 case 0:
-                    for (int y=2; y<gradientMap.height-2; y++) {
-                        if (y%nbCPU==id) {
-                            gradientMap.reconstructStepLR(y);
-                        }
-                    }
+                    gradientMap.reconstructStepLR(2+id*nbRows/nbCPU, 2+(id+1)*nbRows/nbCPU);
                     break;
                 case 1:
-                    for (int x=2; x<gradientMap.width-2; x++) {
-                        if (x%nbCPU==id) {
-                            gradientMap.reconstructStepTB(x);
-                        }
-                    }
+                    gradientMap.reconstructStepTB(2+id*nbCols/nbCPU, 2+(id+1)*nbCols/nbCPU);
                     break;
                 case 2:
-                    for (int y=2; y<gradientMap.height-2; y++) {
-                        if (y%nbCPU==id) {
-                            gradientMap.reconstructStepRL(y);
-                        }
-                    }
+                    gradientMap.reconstructStepRL(2+id*nbRows/nbCPU, 2+(id+1)*nbRows/nbCPU);
                     break;
                 case 3:
-                    for (int x=2; x<gradientMap.width-2; x++) {
-                        if (x%nbCPU==id) {
-                            gradientMap.reconstructStepBT(x);
-                        }
-                    }
+                    gradientMap.reconstructStepBT(2+id*nbCols/nbCPU, 2+(id+1)*nbCols/nbCPU);
                     break;
             }
-            locLock.release();
+            readyLock.release();
             
         }
     }
     
+    /**
+     * Lets the thread do its next step, or stop if the job is done.
+     */
+    public void startStep() {
+        startLock.release();
+    }
+    
+    /**
+     * Waits until the thread has finished its current step.
+     * @throws InterruptedException if interrupted while waiting
+     */
     public void waitForReady() throws InterruptedException {
-        locLock.tryAcquire(500, TimeUnit.MILLISECONDS);
+        readyLock.acquire();
     }
 }
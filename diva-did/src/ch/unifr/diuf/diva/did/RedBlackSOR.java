@@ -0,0 +1,165 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+/**
+ * Successive over-relaxation of a PoissonProblem in red-black order. The
+ * points of a colour only depend on points of the other colour, so each
+ * half-sweep updates all of them independently, by bands of rows in
+ * parallel; the inner loop has no test for the points away from the
+ * border.
+ * @author Mathias Seuret
+ */
+public class RedBlackSOR {
+    
+    /**
+     * Default maximum number of sweeps.
+     */
+    public static final int DEFAULT_MAX_SWEEPS = 5000;
+    
+    /**
+     * Default tolerance, relative to the initial residual norm.
+     */
+    public static final float DEFAULT_TOLERANCE = 1e-5f;
+    
+    /**
+     * Default number of sweeps between two residual evaluations.
+     */
+    public static final int DEFAULT_CHECK_EVERY = 10;
+    
+    /**
+     * Minimum number of rows given to a thread.
+     */
+    private static final int MIN_BAND_ROWS = 16;
+    
+    private final PoissonProblem problem;
+    private final float omega;
+    private final int nx;
+    private final int ny;
+    
+    /**
+     * Prepares a solver.
+     * @param problem to solve
+     * @param omega relaxation factor in ]0,2[, or 0 for the optimal one
+     */
+    public RedBlackSOR(PoissonProblem problem, float omega) {
+        if (omega<0 || omega>=2) {
+            throw new IllegalArgumentException("The relaxation factor must be in ]0,2[");
+        }
+        this.problem = problem;
+        nx = problem.getWidth();
+        ny = problem.getHeight();
+        this.omega = (omega==0) ? getOptimalOmega(nx, ny) : omega;
+    }
+    
+    /**
+     * Computes 2/(1+sqrt(1-rho^2)), where rho is the spectral radius of
+     * the Jacobi iteration of the Laplacian on the grid.
+     * @param nx width of the grid
+     * @param ny height of the grid
+     * @return the relaxation factor giving the fastest convergence
+     */
+    public static float getOptimalOmega(int nx, int ny) {
+        double rho = (Math.cos(Math.PI/(nx+1)) + Math.cos(Math.PI/(ny+1))) / 2;
+        return (float)(2 / (1 + Math.sqrt(1 - rho*rho)));
+    }
+    
+    public float getOmega() {
+        return omega;
+    }
+    
+    /**
+     * Sweeps until the criterion is met, and stores the solution into the
+     * problem. The residual may increase during the first sweeps, so the
+     * criterion only stops when it is below the tolerance.
+     * @param criterion deciding when to stop
+     */
+    public void solve(StopCriterion criterion) {
+        float[] u = problem.getInitialGuess();
+        float[] f = problem.getRhs();
+        if (u.length==0) {
+            criterion.start(0);
+            criterion.isDone(criterion.getMaxSweeps(), 0);
+            return;
+        }
+        criterion.ignoreStagnation();
+        criterion.start(criterion.usesResidual() ? residual(u, f) : Float.NaN);
+        for (int sweep=0; !criterion.isDone(sweep, criterion.needsResidual(sweep) ? residual(u, f) : Float.NaN); sweep++) {
+            halfSweep(u, f, 0);
+            halfSweep(u, f, 1);
+        }
+        problem.store(u);
+    }
+    
+    private float residual(float[] u, float[] f) {
+        return (float)Math.sqrt(PoissonProblem.residual(u, f, null, nx, ny, 1));
+    }
+    
+    /**
+     * Relaxes the points of one colour.
+     * @param colour 0 for the points where i+j is even, 1 for the others
+     */
+    private void halfSweep(final float[] u, final float[] f, final int colour) {
+        final float w = omega/4;
+        final float keep = 1-omega;
+        Parallel.forRows(ny, MIN_BAND_ROWS, new Parallel.RowTask() {
+            @Override
+            public void run(int y0, int y1) {
+                for (int j=y0; j<y1; j++) {
+                    int row = j*nx;
+                    if (j==0 || j==ny-1 || nx<3) {
+                        // rows next to the border, all points tested
+                        for (int i=(j+colour)&1; i<nx; i+=2) {
+                            relax(u, f, i, j, w, keep);
+                        }
+                        continue;
+                    }
+                    int i = (j+colour)&1;
+                    if (i==0) {
+                        relax(u, f, 0, j, w, keep);
+                        i = 2;
+                    }
+                    for (int p=row+i; p<row+nx-1; p+=2) {
+                        float s = u[p-1] + u[p+1] + u[p-nx] + u[p+nx];
+                        u[p] = keep*u[p] + w*(s - f[p]);
+                    }
+                    if (((nx-1+j+colour)&1)==0) {
+                        relax(u, f, nx-1, j, w, keep);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Relaxes a point, the values out of the grid being zero.
+     */
+    private void relax(float[] u, float[] f, int i, int j, float w, float keep) {
+        int p = j*nx+i;
+        float s = ((i>0)    ? u[p-1]  : 0)
+                + ((i<nx-1) ? u[p+1]  : 0)
+                + ((j>0)    ? u[p-nx] : 0)
+                + ((j<ny-1) ? u[p+nx] : 0);
+        u[p] = keep*u[p] + w*(s - f[p]);
+    }
+}
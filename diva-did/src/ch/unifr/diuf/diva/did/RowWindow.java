@@ -0,0 +1,133 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.util.Arrays;
+
+/**
+ * Sliding window over the rows of an image, for kernels with a bounded
+ * radius. The 2*radius+1 rows around the current one are read through
+ * PixelStorage.getRow, so that the memory used does not depend on the
+ * height of the image nor on its storage. Each row is surrounded by an
+ * apron of radius values on both sides, and the rows above and below the
+ * image are made only of apron; the apron holds a fill value, so that
+ * kernels can read the whole neighbourhood of a pixel without checking
+ * the coordinates.
+ * @author Mathias Seuret
+ */
+public class RowWindow {
+    
+    private final PixelStorage src;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int radius;
+    private final float fill;
+    
+    /**
+     * Rows of the window, used as a ring buffer: row y is in slot
+     * y modulo the number of slots. Indices: slot, layer, x+radius.
+     */
+    private final float[][][] rows;
+    
+    /**
+     * Image row stored in each slot.
+     */
+    private final int[] loaded;
+    
+    private int center;
+    
+    /**
+     * Creates a window on the layers of an image.
+     * @param img image to read
+     * @param radius number of rows and columns around a pixel
+     * @param fill value of the apron, i.e., of the pixels outside the image
+     */
+    public RowWindow(Image img, int radius, float fill) {
+        if (radius<0) {
+            throw new IllegalArgumentException("The radius cannot be negative");
+        }
+        src    = img.getStorage();
+        width  = img.getWidth();
+        height = img.getHeight();
+        depth  = img.getDepth();
+        this.radius = radius;
+        this.fill   = fill;
+        rows   = new float[2*radius+1][depth][width+2*radius];
+        loaded = new int[rows.length];
+        for (int s=0; s<rows.length; s++) {
+            for (float[] r : rows[s]) {
+                Arrays.fill(r, fill);
+            }
+            loaded[s] = Integer.MIN_VALUE;
+        }
+    }
+    
+    /**
+     * Centers the window on a row. Moving to the next row reads only one
+     * new row per layer.
+     * @param y row number
+     */
+    public void moveTo(int y) {
+        for (int r=y-radius; r<=y+radius; r++) {
+            int s = slot(r);
+            if (loaded[s]==r) {
+                continue;
+            }
+            if (r>=0 && r<height) {
+                for (int l=0; l<depth; l++) {
+                    src.getRow(l, r, rows[s][l], radius);
+                }
+            } else if (loaded[s]>=0 && loaded[s]<height) {
+                // the slot held a row of the image
+                for (int l=0; l<depth; l++) {
+                    Arrays.fill(rows[s][l], radius, radius+width, fill);
+                }
+            }
+            loaded[s] = r;
+        }
+        center = y;
+    }
+    
+    /**
+     * Returns the layers of a row of the window. The pixel x of the image
+     * is at index x+radius, and the indices from x to x+2*radius cover its
+     * neighbourhood.
+     * @param dy offset from the current row, between -radius and radius
+     * @return the row of each layer
+     */
+    public float[][] getRows(int dy) {
+        return rows[slot(center+dy)];
+    }
+    
+    /**
+     * @return number of rows and columns around a pixel
+     */
+    public int getRadius() {
+        return radius;
+    }
+    
+    private int slot(int y) {
+        return Math.floorMod(y, rows.length);
+    }
+}
@@ -0,0 +1,188 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Saves images in background threads, so that a script can go on while
+ * its outputs are being encoded. The images given to the queue must be
+ * snapshots owned by it; they are released once written. At most a given
+ * number of saves can be pending, further ones wait for a free slot, so
+ * that the snapshots cannot accumulate. Saves to the same file are done
+ * in submission order, and loading a file waits for its pending save.
+ * @author Mathias Seuret
+ */
+public class SaveQueue {
+    
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final Map<String, Future<?>> pending = new HashMap<>();
+    private final List<String> failures = new ArrayList<>();
+    
+    /**
+     * Creates a queue.
+     * @param threads number of writing threads; 0 to save synchronously
+     * @param maxPending maximum number of saves not finished yet
+     */
+    public SaveQueue(int threads, int maxPending) {
+        if (threads<0 || maxPending<1) {
+            throw new IllegalArgumentException(
+                    "A save queue needs at least 0 threads and 1 pending save"
+            );
+        }
+        slots = new Semaphore(maxPending);
+        if (threads==0) {
+            executor = null;
+            return;
+        }
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "divadid-save-"+(count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * @return true if the images are written by background threads
+     */
+    public boolean isAsynchronous() {
+        return executor!=null;
+    }
+    
+    /**
+     * Writes an image, and releases it afterwards.
+     * @param snapshot image owned by the queue
+     * @param fileName destination
+     * @param format informal name of the format, see Image.write()
+     * @param quality JPEG quality, or ImageEncoder.DEFAULT
+     * @param compression PNG compression level, or ImageEncoder.DEFAULT
+     * @throws InterruptedException if interrupted while waiting for a slot
+     * @throws IOException if the save is synchronous and fails
+     */
+    public void submit(final Image snapshot, final String fileName, final String format,
+                       final float quality, final int compression) throws InterruptedException, IOException {
+        if (executor==null) {
+            try {
+                snapshot.write(fileName, format, quality, compression);
+            } finally {
+                snapshot.release();
+            }
+            return;
+        }
+        
+        slots.acquire();
+        final String key = key(fileName);
+        synchronized (pending) {
+            final Future<?> previous = pending.get(key);
+            Future<?> f = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (previous!=null) {
+                            waitFor(previous);
+                        }
+                        snapshot.write(fileName, format, quality, compression);
+                    } catch (Exception | Error e) {
+                        synchronized (failures) {
+                            failures.add(fileName+": "+e);
+                        }
+                    } finally {
+                        snapshot.release();
+                        slots.release();
+                    }
+                }
+            });
+            pending.put(key, f);
+        }
+    }
+    
+    /**
+     * Waits until the pending saves to a file, if any, are done.
+     * @param fileName file about to be read
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitFile(String fileName) throws InterruptedException {
+        Future<?> f;
+        synchronized (pending) {
+            f = pending.get(key(fileName));
+        }
+        if (f!=null) {
+            waitFor(f);
+        }
+    }
+    
+    /**
+     * Waits for all pending saves and stops the threads. The queue
+     * cannot be used afterwards.
+     * @return the descriptions of the saves which failed, possibly empty
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<String> join() throws InterruptedException {
+        if (executor!=null) {
+            List<Future<?>> all;
+            synchronized (pending) {
+                all = new ArrayList<>(pending.values());
+                pending.clear();
+            }
+            for (Future<?> f : all) {
+                waitFor(f);
+            }
+            executor.shutdown();
+        }
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+    
+    private static void waitFor(Future<?> f) throws InterruptedException {
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            // failures are recorded by the task itself
+        }
+    }
+    
+    private static String key(String fileName) {
+        try {
+            return new File(fileName).getCanonicalPath();
+        } catch (IOException e) {
+            return new File(fileName).getAbsolutePath();
+        }
+    }
+}
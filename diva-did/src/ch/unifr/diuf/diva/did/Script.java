@@ -51,7 +51,10 @@ import ch.unifr.diuf.diva.did.commands.Variance;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
@@ -77,6 +80,25 @@ public class Script {
     
     float output;
     
+    /**
+     * Writes the saved images in background.
+     */
+    SaveQueue saves;
+    
+    /**
+     * Decodes the loaded images in advance; null when not running.
+     */
+    Prefetcher prefetcher = null;
+    
+    int prefetchThreads = 2;
+    
+    long prefetchBudget = Runtime.getRuntime().maxMemory() / 4;
+    
+    /**
+     * Set to print memory statistics at the end of the script.
+     */
+    boolean verbose = false;
+    
     /**
      * Loads an XML script
      * @param fname file name of the script
@@ -89,6 +111,59 @@ public class Script {
         root = xml.getRootElement();
         scriptName = fname;
         
+        // statistics about the memory usage are printed only on request
+        verbose = Boolean.parseBoolean(root.getAttributeValue("verbose"));
+        TiledStorage.setVerbose(verbose);
+        
+        // images larger than this amount of megabytes are stored off-heap
+        String threshold = root.getAttributeValue("mapped-threshold");
+        if (threshold!=null) {
+            PixelStorage.setMappedThreshold(Long.parseLong(threshold) << 20);
+        }
+        
+        // default encoding settings of the saved images
+        String quality = root.getAttributeValue("jpeg-quality");
+        if (quality!=null) {
+            ImageEncoder.setJpegQuality(Float.parseFloat(quality));
+        }
+        String compression = root.getAttributeValue("png-compression");
+        if (compression!=null) {
+            ImageEncoder.setPngCompression(Integer.parseInt(compression));
+        }
+        // images are saved by background threads; 0 saves synchronously
+        int saveThreads = 2;
+        String st = root.getAttributeValue("save-threads");
+        if (st!=null) {
+            saveThreads = Integer.parseInt(st);
+        }
+        int maxPending = Math.max(1, 2*saveThreads);
+        String mp = root.getAttributeValue("max-pending-saves");
+        if (mp!=null) {
+            maxPending = Integer.parseInt(mp);
+        }
+        saves = new SaveQueue(saveThreads, maxPending);
+        
+        // files loaded by the script are decoded in advance, within a
+        // budget of megabytes; 0 disables the prefetching
+        String pt = root.getAttributeValue("prefetch-threads");
+        if (pt!=null) {
+            prefetchThreads = Integer.parseInt(pt);
+        }
+        String pb = root.getAttributeValue("prefetch-budget");
+        if (pb!=null) {
+            prefetchBudget = Long.parseLong(pb) << 20;
+        }
+        
+        String pngEncoder = root.getAttributeValue("png-encoder");
+        if (pngEncoder!=null) {
+            if (!pngEncoder.equals("builtin") && !pngEncoder.equals("imageio")) {
+                throw new IllegalArgumentException(
+                        "png-encoder must be either builtin or imageio"
+                );
+            }
+            ImageEncoder.setBuiltinPng(pngEncoder.equals("builtin"));
+        }
+        
         addCommand("image", new ImageCreator(this));
         addCommand("alias", new Alias(this));
         addCommand("print", new TextPrinter(this));
@@ -121,16 +196,92 @@ public class Script {
     }
     
     public void run() throws IOException, InterruptedException, JDOMException {
+        List<String> failures;
+        boolean completed = false;
+        startPrefetching();
+        try {
+            for (Element task : root.getChildren()) {
+                String name = task.getName();
+
+                if (!commands.containsKey(name)) {
+                    throw new IllegalArgumentException(
+                            "Tag <"+name+"> not understood"
+                    );
+                }
+                output = commands.get(name).execute(task);
+                // copies dropped by the task may leave values unshared
+                for (Image img : images.values()) {
+                    img.unshare();
+                }
+            }
+            completed = true;
+        } finally {
+            if (prefetcher!=null) {
+                prefetcher.close();
+                prefetcher = null;
+            }
+            // the images being saved are written even if the script failed
+            failures = saves.join();
+            for (String f : failures) {
+                System.err.println("Could not save "+f);
+            }
+        }
+        if (completed && !failures.isEmpty()) {
+            throw new IOException(failures.size()+" image(s) could not be saved");
+        }
+        if (verbose) {
+            System.out.println("Plane pool: "+PlanePool.getStatistics());
+        }
+    }
+    
+    /**
+     * Looks for the files loaded by <image> tasks and starts decoding them.
+     * Only the tasks before the first <alias> are considered, as later
+     * aliases could change the file names. Files written by a <save> and
+     * loads of a part of a file are left out.
+     */
+    private void startPrefetching() {
+        if (prefetchThreads<=0 || prefetchBudget<=0) {
+            return;
+        }
+        Set<String> saved = new HashSet<>();
+        for (Element task : root.getChildren("save")) {
+            String file = task.getAttributeValue("file");
+            if (file!=null) {
+                saved.add(new File(preprocess(file)).getAbsolutePath());
+            }
+        }
+        
+        Prefetcher p = new Prefetcher(prefetchThreads, prefetchBudget);
         for (Element task : root.getChildren()) {
-            String name = task.getName();
-            
-            if (!commands.containsKey(name)) {
-                throw new IllegalArgumentException(
-                        "Tag <"+name+"> not understood"
-                );
+            if (task.getName().equals("alias")) {
+                break;
+            }
+            // only images using the default storage are decoded in advance
+            if (!task.getName().equals("image")
+                    || task.getAttributeValue("storage")!=null
+                    || task.getAttributeValue("precision")!=null) {
+                continue;
+            }
+            Element load = task.getChild("load");
+            if (load==null || load.getAttributeValue("file")==null
+                    || ImageCreator.isPartial(load)) {
+                continue;
+            }
+            String file = preprocess(load.getAttributeValue("file"));
+            if (!saved.contains(new File(file).getAbsolutePath())) {
+                p.add(file);
             }
-            output = commands.get(name).execute(task);
         }
+        prefetcher = p;
+        prefetcher.start();
+    }
+    
+    /**
+     * @return the prefetcher of the running script, or null
+     */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
     }
     
     public void setAlias(String key, String value) {
@@ -156,4 +307,11 @@ public class Script {
     public Map<String, Image> getImages() {
         return images;
     }
+    
+    /**
+     * @return the queue writing the saved images
+     */
+    public SaveQueue getSaveQueue() {
+        return saves;
+    }
 }
@@ -0,0 +1,192 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+/**
+ * Decides when an iterative reconstruction stops: after a maximum number of
+ * sweeps, when the residual is small or no longer decreases compared to
+ * the initial one, or when a time budget is spent, whichever comes first.
+ * A criterion is used for a single reconstruction.
+ * @author Mathias Seuret
+ */
+public class StopCriterion {
+    
+    /**
+     * Reasons for stopping.
+     */
+    public enum Reason {
+        ITERATIONS,
+        TOLERANCE,
+        TIME
+    }
+    
+    /**
+     * Default number of sweeps between two residual evaluations.
+     */
+    public static final int DEFAULT_CHECK_EVERY = 50;
+    
+    private final int maxSweeps;
+    private final float tolerance;
+    private final int checkEvery;
+    private final long timeLimit;
+    
+    private boolean stagnation = true;
+    
+    private long start;
+    private float initialResidual = Float.NaN;
+    private float lastResidual = Float.NaN;
+    private int sweeps = 0;
+    private Reason reason = null;
+    
+    /**
+     * Creates a criterion running a fixed number of sweeps.
+     * @param maxSweeps number of sweeps
+     */
+    public StopCriterion(int maxSweeps) {
+        this(maxSweeps, 0, DEFAULT_CHECK_EVERY, 0);
+    }
+    
+    /**
+     * Creates a criterion.
+     * @param maxSweeps maximum number of sweeps
+     * @param tolerance relative to the initial residual, 0 to disable
+     * @param checkEvery number of sweeps between two residual evaluations
+     * @param timeLimit in milliseconds, 0 for no limit
+     */
+    public StopCriterion(int maxSweeps, float tolerance, int checkEvery, long timeLimit) {
+        if (maxSweeps<0 || tolerance<0 || checkEvery<1 || timeLimit<0) {
+            throw new IllegalArgumentException("Invalid stop criterion");
+        }
+        this.maxSweeps  = maxSweeps;
+        this.tolerance  = tolerance;
+        this.checkEvery = checkEvery;
+        this.timeLimit  = timeLimit;
+    }
+    
+    /**
+     * @return a criterion with the same parameters, for another reconstruction
+     */
+    public StopCriterion copy() {
+        return new StopCriterion(maxSweeps, tolerance, checkEvery, timeLimit);
+    }
+    
+    /**
+     * Starts the clock.
+     * @param residual before the first sweep, or NaN if not needed
+     */
+    public void start(float residual) {
+        start = System.currentTimeMillis();
+        initialResidual = residual;
+        lastResidual = residual;
+        sweeps = 0;
+        reason = null;
+    }
+    
+    /**
+     * @param sweeps number of sweeps done so far
+     * @return true if isDone() needs the residual after this sweep
+     */
+    public boolean needsResidual(int sweeps) {
+        return tolerance>0 && sweeps>0 && sweeps%checkEvery==0;
+    }
+    
+    /**
+     * Tells whether the reconstruction is over.
+     * @param sweeps number of sweeps done so far
+     * @param residual current residual if needsResidual(sweeps) is true
+     * @return true if no more sweeps should be done
+     */
+    public boolean isDone(int sweeps, float residual) {
+        this.sweeps = sweeps;
+        if (sweeps>=maxSweeps) {
+            reason = Reason.ITERATIONS;
+            return true;
+        }
+        if (timeLimit>0 && System.currentTimeMillis()-start>=timeLimit) {
+            reason = Reason.TIME;
+            return true;
+        }
+        if (needsResidual(sweeps)) {
+            // converged, or the last sweeps did not improve enough
+            float limit = tolerance * initialResidual;
+            boolean done = residual<=limit
+                    || (stagnation && lastResidual-residual<=limit);
+            lastResidual = residual;
+            if (done) {
+                reason = Reason.TOLERANCE;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Records that the solver stopped on its own because the residual
+     * vanished, for example when its initial guess is already exact.
+     * @param sweeps number of sweeps done
+     */
+    public void converged(int sweeps) {
+        this.sweeps = sweeps;
+        reason = Reason.TOLERANCE;
+    }
+    
+    /**
+     * Stops only when the residual is below the tolerance, and not when it
+     * decreases slowly, for solvers whose residual is not monotonic.
+     */
+    public void ignoreStagnation() {
+        stagnation = false;
+    }
+    
+    /**
+     * @return whether residuals are evaluated at all
+     */
+    public boolean usesResidual() {
+        return tolerance>0;
+    }
+    
+    public int getMaxSweeps() {
+        return maxSweeps;
+    }
+    
+    /**
+     * @return the number of sweeps done
+     */
+    public int getSweeps() {
+        return sweeps;
+    }
+    
+    /**
+     * @return why the reconstruction stopped, or null if it is running
+     */
+    public Reason getReason() {
+        return reason;
+    }
+    
+    /**
+     * @return the elapsed time since start(), in milliseconds
+     */
+    public long getElapsed() {
+        return System.currentTimeMillis()-start;
+    }
+}
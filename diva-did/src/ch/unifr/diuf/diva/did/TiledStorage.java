@@ -0,0 +1,387 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Stores an image as square tiles which are decoded from the source file
+ * only when they are accessed. At most a given number of tiles are kept in
+ * memory; the least recently used one is evicted when another one is
+ * needed. Modified tiles are written to a scratch file when they are
+ * evicted, and read back from it afterwards.
+ * Take note that some formats, such as PNG, cannot be decoded from the
+ * middle of the file, so decoding a tile costs more at the bottom of the
+ * image than at the top.
+ * @author Mathias Seuret
+ */
+public class TiledStorage extends PixelStorage {
+    
+    public static final int DEFAULT_TILE_SIZE = 512;
+    public static final int DEFAULT_CACHE_SIZE = 64;
+    
+    /**
+     * Set to print the cache statistics when a tiled image is released.
+     */
+    private static boolean verbose = false;
+    
+    protected final int tileSize;
+    protected final int maxTiles;
+    protected final int tilesPerRow;
+    
+    protected ImageInputStream input;
+    protected ImageReader reader;
+    
+    protected RandomAccessFile spill;
+    protected File spillFile;
+    protected boolean[] spilled;
+    
+    protected final LinkedHashMap<Integer, Tile> cache;
+    
+    protected long hits = 0;
+    protected long misses = 0;
+    protected long evictions = 0;
+    protected long writeBacks = 0;
+    
+    /**
+     * Creates a tiled storage decoding its tiles from an image file.
+     * @param file image file
+     * @param tileSize width and height of the tiles
+     * @param maxTiles maximum number of tiles kept in memory
+     * @throws IOException if the file cannot be read
+     */
+    public TiledStorage(File file, int tileSize, int maxTiles) throws IOException {
+        this(openReader(file), tileSize, maxTiles);
+    }
+    
+    private TiledStorage(ImageReader reader, int tileSize, int maxTiles) throws IOException {
+        this(reader.getWidth(0), reader.getHeight(0), isGray(reader) ? 1 : 3,
+             tileSize, maxTiles);
+        this.reader = reader;
+        this.input  = (ImageInputStream)reader.getInput();
+    }
+    
+    /**
+     * Creates an empty tiled storage.
+     * @param width of the image
+     * @param height of the image
+     * @param depth number of layers
+     * @param tileSize width and height of the tiles
+     * @param maxTiles maximum number of tiles kept in memory
+     */
+    public TiledStorage(int width, int height, int depth, int tileSize, int maxTiles) {
+        super(width, height, depth);
+        if (tileSize<1 || maxTiles<1) {
+            throw new IllegalArgumentException(
+                    "The tile size and the number of cached tiles must be positive"
+            );
+        }
+        this.tileSize = tileSize;
+        this.maxTiles = maxTiles;
+        tilesPerRow   = (width+tileSize-1) / tileSize;
+        int tilesPerColumn = (height+tileSize-1) / tileSize;
+        spilled = new boolean[tilesPerRow*tilesPerColumn];
+        cache = new LinkedHashMap<Integer, Tile>(2*maxTiles, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+                if (size()<=TiledStorage.this.maxTiles) {
+                    return false;
+                }
+                evict(eldest.getValue());
+                return true;
+            }
+        };
+    }
+    
+    private static ImageReader openReader(File file) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        if (in==null) {
+            throw new IOException("Cannot open "+file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            in.close();
+            throw new IOException("No decoder found for "+file);
+        }
+        ImageReader r = readers.next();
+        r.setInput(in, false, true);
+        return r;
+    }
+    
+    /**
+     * Tells whether the image opened by a reader is decoded as graylevel.
+     * @param reader having its input set
+     * @return true if a single layer is enough
+     * @throws IOException if the header cannot be read
+     */
+    private static boolean isGray(ImageReader reader) throws IOException {
+        ImageTypeSpecifier raw = reader.getRawImageType(0);
+        return raw!=null && raw.getBufferedImageType()==BufferedImage.TYPE_BYTE_GRAY;
+    }
+    
+    @Override
+    public Kind getKind() {
+        return Kind.TILED;
+    }
+    
+    @Override
+    public synchronized float get(int layer, int x, int y) {
+        Tile t = getTile(x/tileSize, y/tileSize);
+        return t.data[layer][(y-t.y0)*t.w + x-t.x0];
+    }
+    
+    @Override
+    public synchronized void set(int layer, int x, int y, float value) {
+        Tile t = getTile(x/tileSize, y/tileSize);
+        t.data[layer][(y-t.y0)*t.w + x-t.x0] = value;
+        t.dirty = true;
+    }
+    
+    @Override
+    public synchronized void getRow(int layer, int y, float[] dst, int off) {
+        for (int tx=0; tx<tilesPerRow; tx++) {
+            Tile t = getTile(tx, y/tileSize);
+            System.arraycopy(t.data[layer], (y-t.y0)*t.w, dst, off+t.x0, t.w);
+        }
+    }
+    
+    @Override
+    public synchronized void setRow(int layer, int y, float[] src, int off) {
+        for (int tx=0; tx<tilesPerRow; tx++) {
+            Tile t = getTile(tx, y/tileSize);
+            System.arraycopy(src, off+t.x0, t.data[layer], (y-t.y0)*t.w, t.w);
+            t.dirty = true;
+        }
+    }
+    
+    /**
+     * Returns a tile, loading it if it is not in the cache.
+     * @param tx horizontal index of the tile
+     * @param ty vertical index of the tile
+     * @return the tile
+     */
+    protected Tile getTile(int tx, int ty) {
+        int index = ty*tilesPerRow + tx;
+        Tile t = cache.get(index);
+        if (t!=null) {
+            hits++;
+            return t;
+        }
+        misses++;
+        t = new Tile(index, tx*tileSize, ty*tileSize);
+        try {
+            if (spilled[index]) {
+                readBack(t);
+            } else if (reader!=null) {
+                decode(t);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot load tile "+tx+","+ty, e);
+        }
+        cache.put(index, t);
+        return t;
+    }
+    
+    /**
+     * Decodes a tile from the source file.
+     * @param t tile to fill
+     * @throws IOException if the file cannot be decoded
+     */
+    protected void decode(Tile t) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(t.x0, t.y0, t.w, t.h));
+        BufferedImage bi = reader.read(0, param);
+        RasterDecoder decoder = new RasterDecoder(bi);
+        if (decoder.getDepth()==depth) {
+            for (int y=0; y<t.h; y++) {
+                decoder.decodeRow(y, t.data, y*t.w);
+            }
+            return;
+        }
+        // the decoded type does not match the one announced by the reader
+        float[][] row = new float[decoder.getDepth()][t.w];
+        for (int y=0; y<t.h; y++) {
+            decoder.decodeRow(y, row, 0);
+            for (int l=0; l<depth; l++) {
+                System.arraycopy(row[Math.min(l, row.length-1)], 0, t.data[l], y*t.w, t.w);
+            }
+        }
+    }
+    
+    /**
+     * Called when a tile leaves the cache; modified tiles are written to
+     * the scratch file.
+     * @param t evicted tile
+     */
+    protected void evict(Tile t) {
+        evictions++;
+        if (!t.dirty) {
+            return;
+        }
+        try {
+            FileChannel channel = getSpill().getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(4*t.w*t.h).order(ByteOrder.LITTLE_ENDIAN);
+            long pos = spillPosition(t.index);
+            for (int l=0; l<depth; l++) {
+                buf.clear();
+                buf.asFloatBuffer().put(t.data[l], 0, t.w*t.h);
+                while (buf.hasRemaining()) {
+                    pos += channel.write(buf, pos);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write tile back to "+spillFile, e);
+        }
+        spilled[t.index] = true;
+        writeBacks++;
+    }
+    
+    /**
+     * Reads a tile which has been written to the scratch file.
+     * @param t tile to fill
+     * @throws IOException if the scratch file cannot be read
+     */
+    protected void readBack(Tile t) throws IOException {
+        FileChannel channel = spill.getChannel();
+        ByteBuffer buf = ByteBuffer.allocate(4*t.w*t.h).order(ByteOrder.LITTLE_ENDIAN);
+        long pos = spillPosition(t.index);
+        for (int l=0; l<depth; l++) {
+            buf.clear();
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, pos);
+                if (n<0) {
+                    throw new IOException("Truncated scratch file "+spillFile);
+                }
+                pos += n;
+            }
+            buf.flip();
+            buf.asFloatBuffer().get(t.data[l], 0, t.w*t.h);
+        }
+    }
+    
+    private long spillPosition(int index) {
+        return 4L * depth * tileSize * tileSize * index;
+    }
+    
+    private RandomAccessFile getSpill() throws IOException {
+        if (spill==null) {
+            spillFile = File.createTempFile("divadid-", ".tiles", MappedStorage.getScratchFolder());
+            spillFile.deleteOnExit();
+            spill = new RandomAccessFile(spillFile, "rw");
+        }
+        return spill;
+    }
+    
+    public long getHits() {
+        return hits;
+    }
+    
+    public long getMisses() {
+        return misses;
+    }
+    
+    public long getEvictions() {
+        return evictions;
+    }
+    
+    public long getWriteBacks() {
+        return writeBacks;
+    }
+    
+    /**
+     * Sets whether the cache statistics are printed when tiled images are
+     * released.
+     * @param v true to print them
+     */
+    public static void setVerbose(boolean v) {
+        verbose = v;
+    }
+    
+    /**
+     * @return a summary of the cache usage
+     */
+    public String getStatistics() {
+        return "tiles "+tileSize+"x"+tileSize+", cache of "+maxTiles
+                +": "+hits+" hits, "+misses+" misses, "
+                +evictions+" evictions, "+writeBacks+" write-backs";
+    }
+    
+    @Override
+    public synchronized void release() {
+        if (verbose) {
+            System.out.println("Tile cache: "+getStatistics());
+        }
+        cache.clear();
+        try {
+            if (reader!=null) {
+                reader.dispose();
+                input.close();
+            }
+            if (spill!=null) {
+                spill.close();
+                spillFile.delete();
+            }
+        } catch (IOException e) {
+            System.err.println("Error while closing a tiled image: "+e.getMessage());
+        }
+        reader = null;
+        spill = null;
+    }
+    
+    /**
+     * A decoded tile.
+     */
+    protected class Tile {
+        final int index;
+        final int x0;
+        final int y0;
+        final int w;
+        final int h;
+        final float[][] data;
+        boolean dirty = false;
+        
+        Tile(int index, int x0, int y0) {
+            this.index = index;
+            this.x0 = x0;
+            this.y0 = y0;
+            w = Math.min(tileSize, width-x0);
+            h = Math.min(tileSize, height-y0);
+            data = new float[depth][w*h];
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*****************************************************
+  DIVADid
+  
+  A document image degradation method.
+  ------------------------------
+  Author:
+  2015 by Mathias Seuret <mathias.seuret@unifr.ch>
+  -------------------
+
+  This software is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation version 3.
+
+  This software is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this software; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ ******************************************************************************/
+package ch.unifr.diuf.diva.did;
+
+/**
+ * Counts how many values were pasted on each pixel of an image, so that
+ * the sums can be turned into means. The plane is borrowed from the
+ * PlanePool and given back when the accumulator is released.
+ * @author Mathias Seuret
+ */
+public class WeightAccumulator {
+    
+    private final int width;
+    private final int height;
+    private float[] weight;
+    
+    /**
+     * Creates an accumulator with all weights set to zero.
+     * @param width of the image
+     * @param height of the image
+     */
+    public WeightAccumulator(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        weight = PlanePool.borrow(width*height);
+    }
+    
+    /**
+     * Adds a weight to a pixel.
+     * @param x coordinate
+     * @param y coordinate
+     * @param w weight to add
+     */
+    public void add(int x, int y, float w) {
+        weight[y*width+x] += w;
+    }
+    
+    /**
+     * @param x coordinate
+     * @param y coordinate
+     * @return the accumulated weight of the pixel
+     */
+    public float get(int x, int y) {
+        return weight[y*width+x];
+    }
+    
+    /**
+     * Divides the values of the image by their weights, and sets the
+     * weights to one. Pixels having no weight are not modified.
+     * @param img image whose values were accumulated
+     */
+    public void normalize(Image img) {
+        float[] row = new float[width];
+        for (int l=0; l<img.getDepth(); l++) {
+            for (int y=0; y<height; y++) {
+                img.getRow(l, y, row);
+                for (int x=0, p=y*width; x<width; x++, p++) {
+                    if (weight[p]!=0.0f) {
+                        row[x] /= weight[p];
+                    }
+                }
+                img.setRow(l, y, row);
+            }
+        }
+        for (int p=0; p<weight.length; p++) {
+            if (weight[p]!=0.0f) {
+                weight[p] = 1.0f;
+            }
+        }
+    }
+    
+    /**
+     * Gives the plane back to the PlanePool. The accumulator must not be
+     * used afterwards.
+     */
+    public void release() {
+        PlanePool.giveBack(weight);
+        weight = null;
+    }
+}
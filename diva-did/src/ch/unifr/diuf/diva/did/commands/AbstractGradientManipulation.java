@@ -23,8 +23,13 @@
 
 package ch.unifr.diuf.diva.did.commands;
 
+import ch.unifr.diuf.diva.did.ConjugateGradient;
+import ch.unifr.diuf.diva.did.GradientField;
 import ch.unifr.diuf.diva.did.GradientMap;
 import ch.unifr.diuf.diva.did.Image;
+import ch.unifr.diuf.diva.did.Multigrid;
+import ch.unifr.diuf.diva.did.RedBlackSOR;
+import ch.unifr.diuf.diva.did.StopCriterion;
 import ch.unifr.diuf.diva.did.Script;
 import java.io.IOException;
 import org.jdom2.Element;
@@ -62,24 +67,106 @@ public abstract class AbstractGradientManipulation extends AbstractCommand {
         
         
         // Read additional parameters
-        int nbSteps = 500;
+        // negative values are replaced by the defaults of the algorithm
+        int nbSteps = -1;
+        float tolerance = -1;
+        int checkEvery = -1;
+        long timeLimit = 0;
         float density = 1;
         final int SINGLE_CORE = 0;
         final int MULTI_CORES = 1;
         final int GPU = 2;
+        final int MULTIGRID = 3;
+        final int DCT = 4;
+        final int CG = 5;
+        final int SOR = 6;
         int algoType = MULTI_CORES;
         int currentGPU = 0;
+        boolean wCycle = false;
+        ConjugateGradient.Preconditioner preconditioner = ConjugateGradient.Preconditioner.IC;
+        float omega = 1;
+        float sorOmega = 0;
         for (Element child : task.getChildren()) {
             if (child.getName().equals("iterations")) {
                 nbSteps = Integer.parseInt(script.preprocess(child.getText()));
                 continue;
             }
             
+            if (child.getName().equals("tolerance")) {
+                tolerance = getFloat(child);
+                continue;
+            }
+            
+            if (child.getName().equals("check-every")) {
+                checkEvery = getInt(child);
+                continue;
+            }
+            
+            if (child.getName().equals("time-limit")) {
+                // in seconds
+                timeLimit = (long)(1000*getFloat(child));
+                continue;
+            }
+            
             if (child.getName().equals("multi-core")) {
                 algoType = MULTI_CORES;
                 continue;
             }
             
+            if (child.getName().equals("multigrid")) {
+                algoType = MULTIGRID;
+                String cycle = child.getAttributeValue("cycle");
+                if (cycle!=null && !cycle.equalsIgnoreCase("V") && !cycle.equalsIgnoreCase("W")) {
+                    throw new IllegalArgumentException(
+                            "\n"+commandName+": the multigrid cycle must be V or W"
+                    );
+                }
+                wCycle = cycle!=null && cycle.equalsIgnoreCase("W");
+                continue;
+            }
+            
+            if (child.getName().equals("conjugate-gradient")) {
+                algoType = CG;
+                if (child.getAttributeValue("preconditioner")!=null) {
+                    try {
+                        preconditioner = ConjugateGradient.Preconditioner.valueOf(
+                                getAttribute(child, "preconditioner").toUpperCase()
+                        );
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(
+                                "\n"+commandName+": the preconditioner must be jacobi, ssor or ic"
+                        );
+                    }
+                }
+                if (child.getAttributeValue("omega")!=null) {
+                    omega = getAttributeFloat(child, "omega");
+                    if (omega<=0 || omega>=2) {
+                        throw new IllegalArgumentException(
+                                "\n"+commandName+": omega must be between 0 and 2"
+                        );
+                    }
+                }
+                continue;
+            }
+            
+            if (child.getName().equals("red-black-sor")) {
+                algoType = SOR;
+                if (child.getAttributeValue("omega")!=null) {
+                    sorOmega = getAttributeFloat(child, "omega");
+                    if (sorOmega<=0 || sorOmega>=2) {
+                        throw new IllegalArgumentException(
+                                "\n"+commandName+": omega must be between 0 and 2"
+                        );
+                    }
+                }
+                continue;
+            }
+            
+            if (child.getName().equals("dct")) {
+                algoType = DCT;
+                continue;
+            }
+            
             if (child.getName().equals("single-core")) {
                 algoType = SINGLE_CORE;
                 continue;
@@ -94,34 +181,74 @@ public abstract class AbstractGradientManipulation extends AbstractCommand {
             }
         }
         
-        GradientMap[] grad = {
-            new GradientMap(image, 0),
-            new GradientMap(image, 1),
-            new GradientMap(image, 2)
-        };
+        // one map per layer, so graylevel images are reconstructed once
+        GradientField field = new GradientField(image, image.getDepth());
+        GradientMap[] grad = field.getMaps();
         
         modifyGradient(task, grad, image);
         
+        if (algoType==MULTIGRID) {
+            // multigrid cycles converge quickly, they are checked each time
+            nbSteps    = (nbSteps<0) ? Multigrid.DEFAULT_MAX_CYCLES : nbSteps;
+            tolerance  = (tolerance<0) ? Multigrid.DEFAULT_TOLERANCE : tolerance;
+            checkEvery = (checkEvery<0) ? 1 : checkEvery;
+        } else if (algoType==CG) {
+            nbSteps    = (nbSteps<0) ? ConjugateGradient.DEFAULT_MAX_ITERATIONS : nbSteps;
+            tolerance  = (tolerance<0) ? ConjugateGradient.DEFAULT_TOLERANCE : tolerance;
+            checkEvery = (checkEvery<0) ? 1 : checkEvery;
+        } else if (algoType==SOR) {
+            nbSteps    = (nbSteps<0) ? RedBlackSOR.DEFAULT_MAX_SWEEPS : nbSteps;
+            tolerance  = (tolerance<0) ? RedBlackSOR.DEFAULT_TOLERANCE : tolerance;
+            checkEvery = (checkEvery<0) ? RedBlackSOR.DEFAULT_CHECK_EVERY : checkEvery;
+        } else {
+            nbSteps    = (nbSteps<0) ? 500 : nbSteps;
+            tolerance  = (tolerance<0) ? 0 : tolerance;
+            checkEvery = (checkEvery<0) ? StopCriterion.DEFAULT_CHECK_EVERY : checkEvery;
+        }
+        StopCriterion criterion;
+        try {
+            criterion = new StopCriterion(nbSteps, tolerance, checkEvery, timeLimit);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "\n"+commandName+": iterations, tolerance, check-every and time-limit must be positive"
+            );
+        }
+        
         System.out.println("Starting reconstruction");
-        for (int lvl=0; lvl<3; lvl++) {
+        for (int lvl=0; lvl<grad.length; lvl++) {
+            StopCriterion c = criterion.copy();
             switch (algoType) {
                 case SINGLE_CORE:
-                    grad[lvl].CPUReconstruct(nbSteps);
+                    grad[lvl].CPUReconstruct(c);
                     break;
                 case MULTI_CORES:
-                    grad[lvl].MultiCPUReconstruct(nbSteps);
+                    grad[lvl].MultiCPUReconstruct(c);
                     break;
                 case GPU:
-                    grad[lvl].GPUReconstruct(currentGPU, nbSteps);
+                    grad[lvl].GPUReconstruct(currentGPU, c);
+                    break;
+                case MULTIGRID:
+                    grad[lvl].MultigridReconstruct(c, wCycle);
+                    break;
+                case DCT:
+                    grad[lvl].DCTReconstruct();
+                    break;
+                case CG:
+                    grad[lvl].CGReconstruct(c, preconditioner, omega);
+                    break;
+                case SOR:
+                    grad[lvl].SORReconstruct(c, sorOmega);
                     break;
             }
+            if (algoType==DCT) {
+                System.out.println("Channel "+lvl+": direct solve, residual "+grad[lvl].getResidual());
+            } else {
+                System.out.println("Channel "+lvl+": "+c.getSweeps()+" iterations, residual "
+                        +grad[lvl].getResidual()+", stopped by "+c.getReason());
+            }
         }
-        for (int lvl=0; lvl<3; lvl++) {
-            grad[lvl].pasteValues(image, lvl);
-            grad[lvl] = null;
-            System.gc();
-            Thread.yield();
-        }
+        field.pasteValues(image);
+        field.release();
         return 0;
     }
     
@@ -53,9 +53,9 @@ public class CoOcMatrix extends AbstractCommand {
         
         Image mat = new Image(size, size);
         int S     = size-1;
-        for (int x=0; x<i.getWidth()-1; x++) {
-            for (int y=0; y<i.getHeight()-1; y++) {
-                for (int l=0; l<3; l++) {
+        for (int y=0; y<i.getHeight()-1; y++) {
+            for (int x=0; x<i.getWidth()-1; x++) {
+                for (int l=0; l<i.getDepth(); l++) {
                     int t = (int)(S*i.get(l, x, y));
                     int u = (int)(S*i.get(l, x+1, y));
                     int v = (int)(S*i.get(l, x, y+1));
@@ -69,21 +69,24 @@ public class CoOcMatrix extends AbstractCommand {
         
         for (int l=0; l<3; l++) {
             float max = 0.0f;
-            for (int x=0; x<size; x++) {
-                for (int y=0; y<size; y++) {
+            for (int y=0; y<size; y++) {
+                for (int x=0; x<size; x++) {
                     if (mat.get(l,x,y)>max) {
                         max = mat.get(l,x,y);
                     }
                 }
             }
-            for (int x=0; x<size; x++) {
-                for (int y=0; y<size; y++) {
+            for (int y=0; y<size; y++) {
+                for (int x=0; x<size; x++) {
                     mat.set(l, x, y, mat.get(l, x, y)/max);
                 }
             }
         }
         
-        script.getImages().put(ref, mat);
+        Image previous = script.getImages().put(ref, mat);
+        if (previous!=null) {
+            previous.release();
+        }
         
         return 0;
     }
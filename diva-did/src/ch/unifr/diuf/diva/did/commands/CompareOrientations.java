@@ -23,7 +23,7 @@
 
 package ch.unifr.diuf.diva.did.commands;
 
-import ch.unifr.diuf.diva.did.GradientMap;
+import ch.unifr.diuf.diva.did.GradientField;
 import ch.unifr.diuf.diva.did.Image;
 import ch.unifr.diuf.diva.did.Script;
 import java.io.IOException;
@@ -66,14 +66,17 @@ public class CompareOrientations extends AbstractCommand {
             );
         }
         
+        int depth = Math.max(a.getDepth(), b.getDepth());
         float sum = 0.0f;
-        for (int layer=0; layer<3; layer++) {
-            GradientMap gmA = new GradientMap(a, layer);
-            GradientMap gmB = new GradientMap(b, layer);
-            sum += gmA.weightedOrientationDifference(gmB);
+        GradientField gfA = new GradientField(a, depth);
+        GradientField gfB = new GradientField(b, depth);
+        for (int layer=0; layer<depth; layer++) {
+            sum += gfA.get(layer).weightedOrientationDifference(gfB.get(layer));
         }
+        gfA.release();
+        gfB.release();
         
-        return sum / 3.0f;
+        return sum / depth;
     }
     
 }
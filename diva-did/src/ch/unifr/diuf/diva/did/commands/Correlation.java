@@ -65,15 +65,20 @@ public class Correlation extends AbstractCommand {
             );
         }
         
+        float[] ra = new float[a.getWidth()];
+        float[] rb = new float[a.getWidth()];
         float var = 0;
         int nb    = a.getWidth() * a.getHeight();
-        for (int c=0; c<3; c++) {
+        int depth = Math.max(a.getDepth(), b.getDepth());
+        for (int c=0; c<depth; c++) {
             float sumA = 0;
             float sumB = 0;
-            for (int x=0; x<a.getWidth(); x++) {
-                for (int y=0; y<a.getHeight(); y++) {
-                    sumA += a.get(c, x, y);
-                    sumB += b.get(c, x, y);
+            for (int y=0; y<a.getHeight(); y++) {
+                a.getRow(c, y, ra);
+                b.getRow(c, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    sumA += ra[x];
+                    sumB += rb[x];
                 }
             }
             float meanA = sumA / nb;
@@ -81,17 +86,19 @@ public class Correlation extends AbstractCommand {
             float top   = 0;
             float left  = 0;
             float right = 0;
-            for (int x=0; x<a.getWidth(); x++) {
-                for (int y=0; y<a.getHeight(); y++) {
-                    top   += (a.get(c, x, y)-meanA)*(b.get(c, x, y)-meanB);
-                    left  += (a.get(c, x, y)-meanA)*(a.get(c, x, y)-meanA);
-                    right += (b.get(c, x, y)-meanB)*(b.get(c, x, y)-meanB);
+            for (int y=0; y<a.getHeight(); y++) {
+                a.getRow(c, y, ra);
+                b.getRow(c, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    top   += (ra[x]-meanA)*(rb[x]-meanB);
+                    left  += (ra[x]-meanA)*(ra[x]-meanA);
+                    right += (rb[x]-meanB)*(rb[x]-meanB);
                 }
             }
             var += top / (Math.sqrt(left)*Math.sqrt(right));
         }
         
-        return var / 3;
+        return var / depth;
     }
     
     
@@ -66,8 +66,8 @@ public class DecreaseInkContrast extends AbstractCommand {
         Heightmap heightmap = new Heightmap(heightMapSize);
         heightmap.diamondSquare();
 
-        for (int x = 0; x < img.getWidth(); x++) {
-            for (int y = 0; y < img.getHeight(); y++) {
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
                 float grey = 0;
                 for (int c = 0; c < img.getDepth(); c++) {
                     grey += img.get(c, x, y);
@@ -51,23 +51,22 @@ public class DecreaseMaxContrast extends AbstractGradientManipulation {
         heightmap.diamondSquare();
         heightmap.square();
         
-        Image img = new Image(heightmap.size, heightmap.size);
+        Image img = new Image(heightmap.size, heightmap.size, 1);
         for (int x=0; x<heightmap.size; x++) {
             for (int y=0; y<heightmap.size; y++) {
                 img.set(0, x, y, heightmap.get(x,y));
-                img.set(1, x, y, heightmap.get(x,y));
-                img.set(2, x, y, heightmap.get(x,y));
             }
         }
         img.write("heightmap.jpg", "jpg");
+        img.release();
         
         for (GradientMap g : gradients) {
             for (int dir=0; dir<2; dir++) {
-                float[][] v = (dir==0) ? g.getGX() : g.getGY();
-                for (int x=0; x<g.getWidth(); x++) {
-                    for (int y=0; y<g.getHeight(); y++) {
-                        //v[x][y] *= 1-strength*heightmap.get(x, y);
-                        v[x][y] *= Math.exp(-strength*heightmap.get(x,y));
+                float[] v = (dir==0) ? g.getGX() : g.getGY();
+                for (int y=0; y<g.getHeight(); y++) {
+                    for (int x=0; x<g.getWidth(); x++) {
+                        //v[p] *= 1-strength*heightmap.get(x, y);
+                        v[y*g.getWidth()+x] *= Math.exp(-strength*heightmap.get(x,y));
                     }
                 }
             }
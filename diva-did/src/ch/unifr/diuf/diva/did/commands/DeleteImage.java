@@ -53,7 +53,7 @@ public class DeleteImage extends AbstractCommand {
             );
         }
         
-        script.getImages().remove(refName);
+        script.getImages().remove(refName).release();
         
         return 0;
     }
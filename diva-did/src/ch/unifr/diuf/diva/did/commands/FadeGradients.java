@@ -22,6 +22,7 @@
  ******************************************************************************/
 package ch.unifr.diuf.diva.did.commands;
 
+import ch.unifr.diuf.diva.did.GradientField;
 import ch.unifr.diuf.diva.did.GradientMap;
 import ch.unifr.diuf.diva.did.Image;
 import ch.unifr.diuf.diva.did.Script;
@@ -72,11 +73,13 @@ public class FadeGradients extends AbstractGradientManipulation {
                 }
                 int px = (int)(Math.random()*(image.getWidth()-img.getWidth()));
                 int py = (int)(Math.random()*(image.getHeight()-img.getHeight()));
-                for (int lvl=0; lvl<3; lvl++) {
-                    GradientMap f = new GradientMap(img, lvl);
-                    f.multiplyGradient(image, grad[lvl], px, py, strength);
+                GradientField f = new GradientField(img, grad.length);
+                for (int lvl=0; lvl<grad.length; lvl++) {
+                    f.get(lvl).multiplyGradient(image, grad[lvl], px, py, strength);
                 }
+                f.release();
             }
+            img.release();
         }
     }
 }
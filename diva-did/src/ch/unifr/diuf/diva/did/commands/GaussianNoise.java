@@ -57,8 +57,8 @@ public class GaussianNoise extends AbstractCommand {
         
         float noiseQuantity = this.getChildFloat(task, "strength");
         
-        for (int x=0; x<img.getWidth(); x++) {
-            for (int y=0; y<img.getHeight(); y++) {
+        for (int y=0; y<img.getHeight(); y++) {
+            for (int x=0; x<img.getWidth(); x++) {
                 for (int d=0; d<img.getDepth(); d++) {
                     float offset = (float)(noiseQuantity * Math.sqrt(2*Math.log(1/Math.random())));
                     float sign   = (Math.random()<0.5) ? -1 : 1;
@@ -22,8 +22,13 @@
  ******************************************************************************/
 package ch.unifr.diuf.diva.did.commands;
 
+import ch.unifr.diuf.diva.did.FloatImageIO;
 import ch.unifr.diuf.diva.did.Image;
+import ch.unifr.diuf.diva.did.PixelStorage;
 import ch.unifr.diuf.diva.did.Script;
+import ch.unifr.diuf.diva.did.TiledStorage;
+import java.awt.Rectangle;
+import java.io.File;
 import java.io.IOException;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
@@ -33,13 +38,26 @@ import org.jdom2.JDOMException;
  * @author Mathias Seuret
  */
 public class ImageCreator extends AbstractCommand {
+    
+    /**
+     * Size of the tiles of tiled images, and number of tiles kept in memory.
+     */
+    private int tileSize;
+    private int cacheSize;
+    
+    /**
+     * Attributes of <load> selecting a part of the file.
+     */
+    private static final String[] PART_ATTRIBUTES = {
+        "x", "y", "width", "height", "subsampling", "x-subsampling", "y-subsampling"
+    };
 
     public ImageCreator(Script script) {
         super(script);
     }
 
     @Override
-    public float execute(Element task) throws IOException, JDOMException {
+    public float execute(Element task) throws IOException, JDOMException, InterruptedException {
         String id = getAttribute(task, "id");
         if (id==null) {
             throw new IllegalArgumentException(
@@ -47,6 +65,30 @@ public class ImageCreator extends AbstractCommand {
             );
         }
         
+        PixelStorage.Kind kind = null;
+        if (task.getAttributeValue("storage")!=null) {
+            kind = PixelStorage.parseKind(getAttribute(task, "storage"));
+        }
+        if (task.getAttributeValue("precision")!=null) {
+            PixelStorage.Kind p = PixelStorage.parsePrecision(getAttribute(task, "precision"));
+            if (kind!=null && kind!=PixelStorage.Kind.HEAP && p!=null && kind!=p) {
+                throw new IllegalArgumentException(
+                        "\n"+commandName+": reduced precisions are only available on the heap"
+                );
+            }
+            if (p!=null) {
+                kind = p;
+            }
+        }
+        tileSize  = TiledStorage.DEFAULT_TILE_SIZE;
+        cacheSize = TiledStorage.DEFAULT_CACHE_SIZE;
+        if (task.getAttributeValue("tile-size")!=null) {
+            tileSize = getAttributeInt(task, "tile-size");
+        }
+        if (task.getAttributeValue("cache")!=null) {
+            cacheSize = getAttributeInt(task, "cache");
+        }
+        
         boolean alreadyInitialized = false;
         Image img = null;
         for (Element param : task.getChildren()) {
@@ -57,7 +99,7 @@ public class ImageCreator extends AbstractCommand {
                     );
                 }
                 String fname = param.getAttributeValue("file");
-                img = loadImage(fname);
+                img = loadImage(fname, kind, param);
                 alreadyInitialized = true;
                 continue;
             }
@@ -69,7 +111,7 @@ public class ImageCreator extends AbstractCommand {
                     );
                 }
                 String otherName = param.getAttributeValue("ref");
-                img = copyImage(otherName);
+                img = copyImage(otherName, kind);
                 alreadyInitialized = true;
                 continue;
             }
@@ -84,33 +126,107 @@ public class ImageCreator extends AbstractCommand {
                 String b = getChildString(param, "b");
                 Image ia = script.getImages().get(a);
                 Image ib = script.getImages().get(b);
-                img = new Image(ia.getWidth(), ia.getHeight());
-                for (int x=0; x<ia.getWidth(); x++) {
-                    for (int y=0; y<ia.getHeight(); y++) {
-                        img.set(0, x, y, ia.get(0, x, y)-ib.get(0, x, y));
-                        img.set(1, x, y, ia.get(1, x, y)-ib.get(1, x, y));
-                        img.set(2, x, y, ia.get(2, x, y)-ib.get(2, x, y));
+                int depth = Math.max(ia.getDepth(), ib.getDepth());
+                img = new Image(ia.getWidth(), ia.getHeight(), depth, kind);
+                for (int y=0; y<ia.getHeight(); y++) {
+                    for (int x=0; x<ia.getWidth(); x++) {
+                        for (int l=0; l<depth; l++) {
+                            img.set(l, x, y, ia.get(l, x, y)-ib.get(l, x, y));
+                        }
                     }
                 }
                 alreadyInitialized = true;
                 continue;
             }
         }
-        script.getImages().put(id, img);
+        Image previous = script.getImages().put(id, img);
+        if (previous!=null) {
+            previous.release();
+        }
         return 0;
     }
     
-    private Image loadImage(String fname) throws IOException {
+    private Image loadImage(String fname, PixelStorage.Kind kind, Element load) throws IOException, InterruptedException {
          if (fname==null) {
             throw new IllegalArgumentException(
                     "\n"+commandName+", <load> needs a file"
             );
         }
         fname = script.preprocess(fname);
-        return new Image(fname);
+        // the file may have been saved earlier by the same script
+        script.getSaveQueue().awaitFile(fname);
+        if (isPartial(load)) {
+            return loadPart(fname, kind, load);
+        }
+        if (kind==null && script.getPrefetcher()!=null) {
+            Image img = script.getPrefetcher().take(fname);
+            if (img!=null) {
+                return img;
+            }
+        }
+        if (kind==PixelStorage.Kind.TILED && !FloatImageIO.isFloatFile(fname)) {
+            return new Image(new TiledStorage(new File(fname), tileSize, cacheSize));
+        }
+        return new Image(fname, kind);
+    }
+    
+    /**
+     * Tells whether a <load> asks for a region or a subsampling.
+     * @param load element
+     * @return true if only a part of the file is needed
+     */
+    public static boolean isPartial(Element load) {
+        for (String a : PART_ATTRIBUTES) {
+            if (load.getAttributeValue(a)!=null) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Loads the region of a file given by the x, y, width and height
+     * attributes, keeping one pixel out of subsampling in each direction.
+     * Missing attributes give the whole image.
+     */
+    private Image loadPart(String fname, PixelStorage.Kind kind, Element load) throws IOException {
+        Rectangle region = null;
+        if (load.getAttributeValue("x")!=null || load.getAttributeValue("y")!=null
+                || load.getAttributeValue("width")!=null || load.getAttributeValue("height")!=null) {
+            region = new Rectangle(
+                    getAttributeInt(load, "x", 0),
+                    getAttributeInt(load, "y", 0),
+                    getAttributeInt(load, "width", Integer.MAX_VALUE),
+                    getAttributeInt(load, "height", Integer.MAX_VALUE)
+            );
+        }
+        int step  = getAttributeInt(load, "subsampling", 1);
+        int xStep = getAttributeInt(load, "x-subsampling", step);
+        int yStep = getAttributeInt(load, "y-subsampling", step);
+        if (region!=null && (region.x<0 || region.y<0 || region.width<=0 || region.height<=0)) {
+            throw new IllegalArgumentException(
+                    "\n"+commandName+", <load>: invalid region"
+            );
+        }
+        if (xStep<1 || yStep<1) {
+            throw new IllegalArgumentException(
+                    "\n"+commandName+", <load>: subsampling must be at least 1"
+            );
+        }
+        if (kind==PixelStorage.Kind.TILED) {
+            throw new IllegalArgumentException(
+                    "\n"+commandName+", <load>: regions and subsampling cannot be used with tiled storage"
+            );
+        }
+        // the decoder skips the pixels which are not kept
+        return new Image(fname, kind, region, xStep, yStep);
+    }
+    
+    private int getAttributeInt(Element e, String argName, int def) {
+        return (e.getAttributeValue(argName)==null) ? def : getAttributeInt(e, argName);
     }
     
-    private Image copyImage(String otherName) {
+    private Image copyImage(String otherName, PixelStorage.Kind kind) {
         if (otherName==null) {
             throw new IllegalArgumentException(
                     "\n"+commandName+", <copy> requires a ref"
@@ -122,7 +238,8 @@ public class ImageCreator extends AbstractCommand {
                     "\n"+commandName+", <copy>: cannot find image "+otherName
             );
         }
-        return new Image(script.getImages().get(otherName));
+        Image src = script.getImages().get(otherName);
+        return (kind==null) ? new Image(src) : new Image(src, kind);
     }
     
 }
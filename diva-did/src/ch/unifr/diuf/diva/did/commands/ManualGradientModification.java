@@ -22,6 +22,7 @@
  ******************************************************************************/
 package ch.unifr.diuf.diva.did.commands;
 
+import ch.unifr.diuf.diva.did.GradientField;
 import ch.unifr.diuf.diva.did.GradientMap;
 import ch.unifr.diuf.diva.did.Image;
 import ch.unifr.diuf.diva.did.Script;
@@ -49,10 +50,12 @@ public class ManualGradientModification extends AbstractGradientManipulation {
             String source  = getChildString(d, "file");
             
             Image img = new Image(source);
-            for (int lvl=0; lvl<3; lvl++) {
-                GradientMap n = new GradientMap(img, lvl);
-                n.pasteGradient(image, grad[lvl], x, y, strength);
+            GradientField n = new GradientField(img, grad.length);
+            for (int lvl=0; lvl<grad.length; lvl++) {
+                n.get(lvl).pasteGradient(image, grad[lvl], x, y, strength);
             }
+            n.release();
+            img.release();
             
         }
     }
@@ -64,8 +64,9 @@ public class MixImages extends AbstractCommand {
         Image ref = script.getImages().get(refName);
         Image clean = script.getImages().get(cleanName);
         
-        ref = mixImages(clean, ref);
-        script.getImages().put(refName, ref);
+        Image mixed = mixImages(clean, ref);
+        script.getImages().put(refName, mixed);
+        ref.release();
         
         return 0;
     }
@@ -76,16 +77,17 @@ public class MixImages extends AbstractCommand {
                     "\n"+commandName+": requires both images to have the same size"
             );
         }
-        Image res = new Image(original.getWidth(), original.getHeight());
+        int depth = Math.max(original.getDepth(), noised.getDepth());
+        Image res = new Image(original.getWidth(), original.getHeight(), depth);
         
-        for (int x=0; x<original.getWidth(); x++) {
-            for (int y=0; y<original.getHeight(); y++) {
+        for (int y=0; y<original.getHeight(); y++) {
+            for (int x=0; x<original.getWidth(); x++) {
                 float gray = (original.get(0, x, y)+original.get(2, x, y)+original.get(2, x, y))/3.0f;
                 float ratio = 4 * gray * gray;
                 if (ratio>1) {
                     ratio = 1;
                 }
-                for (int l=0; l<3; l++) {
+                for (int l=0; l<depth; l++) {
                     float v = ratio*noised.get(l, x, y) + (1.0f-ratio)*original.get(l, x, y);
                     res.set(l, x, y, v);
                 }
@@ -22,6 +22,7 @@
  ******************************************************************************/
 package ch.unifr.diuf.diva.did.commands;
 
+import ch.unifr.diuf.diva.did.GradientField;
 import ch.unifr.diuf.diva.did.GradientMap;
 import ch.unifr.diuf.diva.did.Image;
 import ch.unifr.diuf.diva.did.Script;
@@ -73,13 +74,15 @@ public class NoiseGradients extends AbstractGradientManipulation {
                 }
                 int px = -img.getWidth()  + (int)(Math.random()*(image.getWidth()+2*img.getWidth()));
                 int py = -img.getHeight() + (int)(Math.random()*(image.getHeight()+2*img.getHeight()));
-                for (int lvl=0; lvl<3; lvl++) {
-                    GradientMap n = new GradientMap(img, lvl);
-                    n.pasteGradient(image, grad[lvl], px, py, strength);
+                GradientField n = new GradientField(img, grad.length);
+                for (int lvl=0; lvl<grad.length; lvl++) {
+                    n.get(lvl).pasteGradient(image, grad[lvl], px, py, strength);
                 }
+                n.release();
                 count++;
                 rnd = Math.random();
             }
+            img.release();
         }
         System.out.println(count+" patches pasted");
         System.out.println("Patches per pixel: "+(count*sP/sD));
@@ -51,13 +51,15 @@ public class NonNullMean extends AbstractCommand {
         
         float sum = 0;
         int count = 0;
-        for (int x=0; x<i.getWidth(); x++) {
+        float[] row = new float[i.getWidth()];
+        for (int l=0; l<i.getDepth(); l++) {
             for (int y=0; y<i.getHeight(); y++) {
-                for (int l=0; l<i.getDepth(); l++) {
-                    if (i.get(l, x, y)==0) {
+                i.getRow(l, y, row);
+                for (int x=0; x<i.getWidth(); x++) {
+                    if (row[x]==0) {
                         continue;
                     }
-                    sum += i.get(l, x, y);
+                    sum += row[x];
                     count++;
                 }
             }
@@ -57,8 +57,8 @@ public class PepperSalt extends AbstractCommand {
         
         float noiseQuantity = getChildFloat(task, "fraction");
         
-        for (int x=0; x<img.getWidth(); x++) {
-            for (int y=0; y<img.getHeight(); y++) {
+        for (int y=0; y<img.getHeight(); y++) {
+            for (int x=0; x<img.getWidth(); x++) {
                 if (Math.random()>noiseQuantity) {
                     continue;
                 }
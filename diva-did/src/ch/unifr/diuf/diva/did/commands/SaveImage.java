@@ -23,6 +23,8 @@
 package ch.unifr.diuf.diva.did.commands;
 
 import ch.unifr.diuf.diva.did.Image;
+import ch.unifr.diuf.diva.did.ImageEncoder;
+import ch.unifr.diuf.diva.did.SaveQueue;
 import ch.unifr.diuf.diva.did.Script;
 import java.io.IOException;
 import org.jdom2.Element;
@@ -61,7 +63,49 @@ public class SaveImage extends AbstractCommand {
             );
         }
         Image ref = script.getImages().get(refName);
-        ref.write(fileName);
+        
+        // optional encoding settings
+        float quality = ImageEncoder.DEFAULT;
+        int compression = ImageEncoder.DEFAULT;
+        String q = task.getAttributeValue("quality");
+        if (q!=null) {
+            quality = Float.parseFloat(script.preprocess(q));
+            if (quality<0 || quality>1) {
+                throw new IllegalArgumentException(
+                        "\n"+commandName+", <save>: quality must be between 0 and 1"
+                );
+            }
+        }
+        String c = task.getAttributeValue("compression");
+        if (c!=null) {
+            compression = Integer.parseInt(script.preprocess(c));
+            if (compression<0 || compression>9) {
+                throw new IllegalArgumentException(
+                        "\n"+commandName+", <save>: compression must be between 0 and 9"
+                );
+            }
+        }
+        
+        String format;
+        try {
+            format = Image.getFormat(fileName);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "\n"+commandName+": "+e.getMessage()
+            );
+        }
+        
+        // the queue writes a copy-on-write snapshot, so that the script can
+        // go on modifying the image while it is encoded; images which cannot
+        // be shared are written directly rather than copied first
+        SaveQueue queue = script.getSaveQueue();
+        if (queue.isAsynchronous() && ref.canShare()) {
+            queue.submit(new Image(ref), fileName, format, quality, compression);
+        } else {
+            // an earlier save of the same file could still be running
+            queue.awaitFile(fileName);
+            ref.write(fileName, format, quality, compression);
+        }
         return 0;
     }
     
@@ -64,15 +64,20 @@ public class ScaleOffsetInvDist extends AbstractCommand {
             );
         }
         
+        float[] ra = new float[a.getWidth()];
+        float[] rb = new float[a.getWidth()];
         float sum    = 0;
         long count   = a.getWidth()*a.getHeight();
         float delta2 = 0;
-        for (int channel=0; channel<3; channel++) {
+        int depth    = Math.max(a.getDepth(), b.getDepth());
+        for (int channel=0; channel<depth; channel++) {
             // Computing Omega
             float omega = 0.0f;
-            for (int x=0; x<a.getWidth(); x++) {
-                for (int y=0; y<a.getHeight(); y++) {
-                    omega += b.get(channel, x, y) - a.get(channel, x, y);
+            for (int y=0; y<a.getHeight(); y++) {
+                a.getRow(channel, y, ra);
+                b.getRow(channel, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    omega += rb[x] - ra[x];
                 }
             }
             omega /= count;
@@ -80,24 +85,28 @@ public class ScaleOffsetInvDist extends AbstractCommand {
             // Computing eta
             float top = 0;
             float bot = 0;
-            for (int x=0; x<a.getWidth(); x++) {
-                for (int y=0; y<a.getHeight(); y++) {
-                    top += (omega-b.get(channel, x, y))*a.get(channel, x, y);
-                    bot += a.get(channel, x, y)*a.get(channel, x, y);
+            for (int y=0; y<a.getHeight(); y++) {
+                a.getRow(channel, y, ra);
+                b.getRow(channel, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    top += (omega-rb[x])*ra[x];
+                    bot += ra[x]*ra[x];
                 }
             }
             float eta = -top / bot;
             
-            for (int x=0; x<a.getWidth(); x++) {
-                for (int y=0; y<a.getHeight(); y++) {
-                    //float d = a.get(channel, x, y) + omega - b.get(channel, x, y);
-                    float d = eta*a.get(channel, x, y) + omega - b.get(channel, x, y);
+            for (int y=0; y<a.getHeight(); y++) {
+                a.getRow(channel, y, ra);
+                b.getRow(channel, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    //float d = ra[x] + omega - rb[x];
+                    float d = eta*ra[x] + omega - rb[x];
                     delta2 += d*d;
                 }
             }
         }
         
-        return (float)Math.sqrt(delta2 / count / 3);
+        return (float)Math.sqrt(delta2 / count / depth);
     }
     
 }
@@ -64,17 +64,22 @@ public class ScaledDifference extends AbstractCommand {
             );
         }
         
+        float[] ra = new float[a.getWidth()];
+        float[] rb = new float[a.getWidth()];
         float sum    = 0;
         long count   = a.getWidth()*a.getHeight();
         float delta2 = 0;
-        for (int channel=0; channel<3; channel++) {
+        int depth    = Math.max(a.getDepth(), b.getDepth());
+        for (int channel=0; channel<depth; channel++) {
             // Computing the means
             float sumA = 0;
             float sumB = 0;
-            for (int x=0; x<a.getWidth(); x++) {
-                for (int y=0; y<a.getHeight(); y++) {
-                    sumA += a.get(channel, x, y);
-                    sumB += b.get(channel, x, y);
+            for (int y=0; y<a.getHeight(); y++) {
+                a.getRow(channel, y, ra);
+                b.getRow(channel, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    sumA += ra[x];
+                    sumB += rb[x];
                 }
             }
             float alpha = sumA / count;
@@ -83,23 +88,27 @@ public class ScaledDifference extends AbstractCommand {
             // Computing eta
             float top = 0;
             float bot = 0;
-            for (int x=0; x<a.getWidth(); x++) {
-                for (int y=0; y<a.getHeight(); y++) {
-                    top += (a.get(channel, x, y)-alpha)*(b.get(channel, x, y)-beta);
-                    bot += (a.get(channel, x, y)-alpha)*(a.get(channel, x, y)-alpha);
+            for (int y=0; y<a.getHeight(); y++) {
+                a.getRow(channel, y, ra);
+                b.getRow(channel, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    top += (ra[x]-alpha)*(rb[x]-beta);
+                    bot += (ra[x]-alpha)*(ra[x]-alpha);
                 }
             }
             float eta = top / bot;
             
-            for (int x=0; x<a.getWidth(); x++) {
-                for (int y=0; y<a.getHeight(); y++) {
-                    float d = eta*(a.get(channel, x, y)-alpha) - (b.get(channel, x, y)-beta);                    
+            for (int y=0; y<a.getHeight(); y++) {
+                a.getRow(channel, y, ra);
+                b.getRow(channel, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    float d = eta*(ra[x]-alpha) - (rb[x]-beta);                    
                     delta2 += d*d;
                 }
             }
         }
         
-        return (float)Math.sqrt(delta2 / count / 3);
+        return (float)Math.sqrt(delta2 / count / depth);
     }
     
 }
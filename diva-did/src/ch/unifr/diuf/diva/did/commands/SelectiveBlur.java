@@ -23,8 +23,10 @@
 package ch.unifr.diuf.diva.did.commands;
 
 import ch.unifr.diuf.diva.did.Image;
+import ch.unifr.diuf.diva.did.RowWindow;
 import ch.unifr.diuf.diva.did.Script;
 import java.io.IOException;
+import java.util.Arrays;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
 
@@ -66,37 +68,66 @@ public class SelectiveBlur extends AbstractCommand {
         thres = thres * thres;
         
         Image img = script.getImages().get(refName);
-        Image res = new Image(img);
+        Image res = new Image(img.getWidth(), img.getHeight(), img.getDepth());
+        int w = img.getWidth();
+        int h = img.getHeight();
         
-        for (int l=0; l<3; l++) {
-            for (int x=0; x<res.getWidth(); x++) {
-                for (int y=0; y<res.getHeight(); y++) {
-                    float sum = 0;
-                    int count = 0;
-                    for (int dx=-range; dx<=range; dx++) {
-                        for (int dy=-range; dy<=range; dy++) {
-                            int px = x+dx;
-                            int py = y+dy;
-                            if (px<0 || py<0 || px>=res.getWidth() || py>=res.getHeight()) {
-                                continue;
+        // pixels outside the image are NaN, which no color is close to, so
+        // that they are skipped without checking the coordinates
+        int depth = img.getDepth();
+        RowWindow win = new RowWindow(img, range, Float.NaN);
+        float[][] out = new float[depth][w];
+        float[] sum = new float[depth];
+        for (int y=0; y<h; y++) {
+            win.moveTo(y);
+            float[][] centre = win.getRows(0);
+            for (int x=0; x<w; x++) {
+                int p = x+range;
+                Arrays.fill(sum, 0);
+                int count = 0;
+                
+                for (int dy=-range; dy<=range; dy++) {
+                    float[][] nb = win.getRows(dy);
+                    for (int q=x; q<=x+2*range; q++) {
+                        if (isClose(centre, p, nb, q, thres)) {
+                            for (int l=0; l<depth; l++) {
+                                sum[l] += nb[l][q];
                             }
-                            float dr = img.get(0,px,py)-img.get(0,x,y);
-                            float dg = img.get(1,px,py)-img.get(1,x,y);
-                            float db = img.get(2,px,py)-img.get(2,x,y);
-                            if (dr*dr + dg*dg + db*db > thres) {
-                                continue;
-                            }
-                            
-                            sum += img.get(l, px, py);
                             count++;
                         }
                     }
-                    res.set(l, x, y, sum/count);
                 }
+                
+                for (int l=0; l<depth; l++) {
+                    out[l][x] = sum[l]/count;
+                }
+            }
+            for (int l=0; l<depth; l++) {
+                res.setRow(l, y, out[l]);
             }
         }
         script.getImages().put(refName, res);
+        img.release();
         return 0;
     }
     
+    /**
+     * Indicates whether two pixels have similar colors, using all the
+     * layers of the image.
+     * @param a layers of the row of the first pixel
+     * @param p index of the first pixel
+     * @param b layers of the row of the second pixel
+     * @param q index of the second pixel
+     * @param thres squared distance threshold
+     * @return true if the distance is below the threshold
+     */
+    private static boolean isClose(float[][] a, int p, float[][] b, int q, float thres) {
+        float dist = 0;
+        for (int l=0; l<a.length; l++) {
+            float d = b[l][q]-a[l][p];
+            dist += d*d;
+        }
+        return dist<=thres;
+    }
+    
 }
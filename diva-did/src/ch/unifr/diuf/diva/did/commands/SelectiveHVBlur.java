@@ -23,8 +23,10 @@
 package ch.unifr.diuf.diva.did.commands;
 
 import ch.unifr.diuf.diva.did.Image;
+import ch.unifr.diuf.diva.did.RowWindow;
 import ch.unifr.diuf.diva.did.Script;
 import java.io.IOException;
+import java.util.Arrays;
 import org.jdom2.Element;
 import org.jdom2.JDOMException;
 
@@ -66,43 +68,75 @@ public class SelectiveHVBlur extends AbstractCommand {
         thres = thres * thres;
         
         Image img = script.getImages().get(refName);
-        Image res = new Image(img);
+        Image res = new Image(img.getWidth(), img.getHeight(), img.getDepth());
+        int w = img.getWidth();
+        int h = img.getHeight();
         
-        for (int l=0; l<3; l++) {
-            for (int x=0; x<res.getWidth(); x++) {
-                for (int y=0; y<res.getHeight(); y++) {
-                    float sum = 0;
-                    int count = 0;
-                    for (int d=-range; d<=range; d++) {
-                        int px = x+d;
-                        int py = y+d;
-                        
-                        if (px>=0 && px<res.getWidth()) {
-                            float dr = img.get(0,px,y)-img.get(0,x,y);
-                            float dg = img.get(1,px,y)-img.get(1,x,y);
-                            float db = img.get(2,px,y)-img.get(2,x,y);
-                            if (dr*dr + dg*dg + db*db <= thres) {
-                                sum += img.get(l, px, y);
-                                count++;
-                            }
+        // pixels outside the image are NaN, which no color is close to, so
+        // that they are skipped without checking the coordinates
+        int depth = img.getDepth();
+        RowWindow win = new RowWindow(img, range, Float.NaN);
+        float[][] out = new float[depth][w];
+        float[] sum = new float[depth];
+        for (int y=0; y<h; y++) {
+            win.moveTo(y);
+            float[][] centre = win.getRows(0);
+            for (int x=0; x<w; x++) {
+                int p = x+range;
+                Arrays.fill(sum, 0);
+                int count = 0;
+                
+                // horizontal neighbours
+                for (int q=x; q<=x+2*range; q++) {
+                    if (isClose(centre, p, centre, q, thres)) {
+                        for (int l=0; l<depth; l++) {
+                            sum[l] += centre[l][q];
                         }
-                        
-                        if (py>=0 && py<res.getHeight()) {
-                            float dr = img.get(0,x,py)-img.get(0,x,y);
-                            float dg = img.get(1,x,py)-img.get(1,x,y);
-                            float db = img.get(2,x,py)-img.get(2,x,y);
-                            if (dr*dr + dg*dg + db*db <= thres) {
-                                sum += img.get(l, x, py);
-                                count++;
-                            }
+                        count++;
+                    }
+                }
+                
+                // vertical neighbours
+                for (int dy=-range; dy<=range; dy++) {
+                    float[][] nb = win.getRows(dy);
+                    if (isClose(centre, p, nb, p, thres)) {
+                        for (int l=0; l<depth; l++) {
+                            sum[l] += nb[l][p];
                         }
+                        count++;
                     }
-                    res.set(l, x, y, sum/count);
                 }
+                
+                for (int l=0; l<depth; l++) {
+                    out[l][x] = sum[l]/count;
+                }
+            }
+            for (int l=0; l<depth; l++) {
+                res.setRow(l, y, out[l]);
             }
         }
         script.getImages().put(refName, res);
+        img.release();
         return 0;
     }
     
+    /**
+     * Indicates whether two pixels have similar colors, using all the
+     * layers of the image.
+     * @param a layers of the row of the first pixel
+     * @param p index of the first pixel
+     * @param b layers of the row of the second pixel
+     * @param q index of the second pixel
+     * @param thres squared distance threshold
+     * @return true if the distance is below the threshold
+     */
+    private static boolean isClose(float[][] a, int p, float[][] b, int q, float thres) {
+        float dist = 0;
+        for (int l=0; l<a.length; l++) {
+            float d = b[l][q]-a[l][p];
+            dist += d*d;
+        }
+        return dist<=thres;
+    }
+    
 }
@@ -66,16 +66,21 @@ public class SquareDiff extends AbstractCommand {
         
         float sum = 0;
         
-        for (int x=0; x<a.getWidth(); x++) {
+        int depth = Math.max(a.getDepth(), b.getDepth());
+        float[] ra = new float[a.getWidth()];
+        float[] rb = new float[a.getWidth()];
+        for (int l=0; l<depth; l++) {
             for (int y=0; y<a.getHeight(); y++) {
-                for (int l=0; l<a.getDepth(); l++) {
-                    float d = a.get(l, x, y)-b.get(l, x, y);
+                a.getRow(l, y, ra);
+                b.getRow(l, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    float d = ra[x]-rb[x];
                     sum += d*d;
                 }
             }
         }
         
-        return (float)Math.sqrt(sum / a.getWidth() / a.getHeight() / 3);
+        return (float)Math.sqrt(sum / a.getWidth() / a.getHeight() / depth);
     }
     
 }
@@ -60,30 +60,36 @@ public class SquareDiffVariance extends AbstractCommand {
         Image a = script.getImages().get(nameA);
         Image b = script.getImages().get(nameB);
         
+        // the squared differences are computed twice instead of being stored
         float sum = 0.0f;
-        Image c = new Image(a.getWidth(), b.getHeight());
-        for (int l=0; l<3; l++) {
-            for (int x=0; x<a.getWidth(); x++) {
-                for (int y=0; y<a.getHeight(); y++) {
-                    float d  = a.get(l, x, y) - b.get(l, x, y);
-                    float dd = d*d;
-                    c.set(l, x, y, dd);
-                    sum += dd;
+        int depth = Math.max(a.getDepth(), b.getDepth());
+        float[] ra = new float[a.getWidth()];
+        float[] rb = new float[a.getWidth()];
+        for (int l=0; l<depth; l++) {
+            for (int y=0; y<a.getHeight(); y++) {
+                a.getRow(l, y, ra);
+                b.getRow(l, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    float d  = ra[x] - rb[x];
+                    sum += d*d;
                 }
             }
         }
-        float mean = sum / (3*a.getWidth()*a.getHeight());
+        float mean = sum / (depth*a.getWidth()*a.getHeight());
         
-        for (int l=0; l<3; l++) {
-            for (int x=0; x<a.getWidth(); x++) {
-                for (int y=0; y<a.getHeight(); y++) {
-                    float d = c.get(l, x, y)-mean;
-                    var += d*d;
+        for (int l=0; l<depth; l++) {
+            for (int y=0; y<a.getHeight(); y++) {
+                a.getRow(l, y, ra);
+                b.getRow(l, y, rb);
+                for (int x=0; x<a.getWidth(); x++) {
+                    float d  = ra[x] - rb[x];
+                    float dv = d*d-mean;
+                    var += dv*dv;
                 }
             }
         }
         
-        return var / (3*a.getWidth()*a.getHeight());
+        return var / (depth*a.getWidth()*a.getHeight());
     }
     
 }
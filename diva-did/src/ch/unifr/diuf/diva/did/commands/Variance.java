@@ -49,22 +49,25 @@ public class Variance extends AbstractCommand {
         }
         Image i = script.getImages().get(ref);
         
+        float[] ri = new float[i.getWidth()];
         float meanVar = 0;
-        for (int l=0; l<3; l++) {
+        for (int l=0; l<i.getDepth(); l++) {
             float sum = 0;
             int count = 0;
-            for (int x=0; x<i.getWidth(); x++) {
-                for (int y=0; y<i.getHeight(); y++) {
-                    sum += i.get(l, x, y);
+            for (int y=0; y<i.getHeight(); y++) {
+                i.getRow(l, y, ri);
+                for (int x=0; x<i.getWidth(); x++) {
+                    sum += ri[x];
                     count++;
                 }
             }
             float mean = sum / count;
             sum = 0;
             count = 0;
-            for (int x=0; x<i.getWidth(); x++) {
-                for (int y=0; y<i.getHeight(); y++) {
-                    float d = mean-i.get(l, x, y);
+            for (int y=0; y<i.getHeight(); y++) {
+                i.getRow(l, y, ri);
+                for (int x=0; x<i.getWidth(); x++) {
+                    float d = mean-ri[x];
                     sum += d*d;
                     count++;
                 }
@@ -74,7 +77,7 @@ public class Variance extends AbstractCommand {
         }
         
         
-        return meanVar / 3;
+        return meanVar / i.getDepth();
     }
     
 }